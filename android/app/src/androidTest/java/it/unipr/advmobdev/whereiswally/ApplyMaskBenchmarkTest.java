@@ -0,0 +1,102 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Microbenchmark of the mask application stage, comparing the per-pixel
+ * implementation with the bulk one based on stripes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ApplyMaskBenchmarkTest {
+    private static final String TAG = "ApplyMaskBenchmark";
+
+    private static final int WIDTH = 4130;
+    private static final int HEIGHT = 2455;
+    private static final int PARALLELISM = 4;
+
+    @Test
+    public void applyMask_bulkMatchesPerPixel() throws InterruptedException {
+        Bitmap image = createImage();
+        BinaryMask mask = createMask();
+
+        Bitmap expected = image.copy(Bitmap.Config.ARGB_8888, true);
+        long start = SystemClock.elapsedRealtime();
+        applyMaskPerPixel(expected, mask);
+        long perPixelTime = SystemClock.elapsedRealtime() - start;
+
+        Bitmap sequential = image.copy(Bitmap.Config.ARGB_8888, true);
+        start = SystemClock.elapsedRealtime();
+        MaskApplier.applyMask(image, sequential, mask, 0, 0, WIDTH, HEIGHT,
+                new int[WIDTH * MaskApplier.STRIPE_HEIGHT]);
+        long sequentialTime = SystemClock.elapsedRealtime() - start;
+
+        Bitmap parallel = image.copy(Bitmap.Config.ARGB_8888, true);
+        ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM);
+        start = SystemClock.elapsedRealtime();
+        MaskApplier.applyMask(image, parallel, mask, executor, PARALLELISM);
+        long parallelTime = SystemClock.elapsedRealtime() - start;
+        executor.shutdown();
+
+        Log.i(TAG, "Per-pixel: " + perPixelTime + " ms, "
+                + "bulk: " + sequentialTime + " ms, "
+                + "bulk with " + PARALLELISM + " stripes in parallel: " + parallelTime + " ms");
+
+        assertTrue(expected.sameAs(sequential));
+        assertTrue(expected.sameAs(parallel));
+    }
+
+    /**
+     * Previous implementation, based on a call for each pixel.
+     */
+    private static void applyMaskPerPixel(Bitmap image, BinaryMask mask) {
+        int rgb, r, g, b, gray;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if (!mask.get(x, y)) {
+                    rgb = image.getPixel(x, y);
+                    r = (rgb >> 16) & 0xff;
+                    g = (rgb >> 8) & 0xff;
+                    b = rgb & 0xff;
+                    gray = (r + g + b) / 3;
+                    image.setPixel(x, y, 0xff000000 | (gray << 16) | (gray << 8) | gray);
+                }
+            }
+        }
+    }
+
+    private static Bitmap createImage() {
+        Random random = new Random(42);
+        int[] row = new int[WIDTH];
+        Bitmap image = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                row[x] = 0xff000000 | random.nextInt(0x1000000);
+            }
+            image.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+        return image;
+    }
+
+    private static BinaryMask createMask() {
+        BinaryMask mask = new BinaryMask(WIDTH, HEIGHT);
+        for (int y = 1000; y < 1200; y++) {
+            for (int x = 2000; x < 2100; x++) {
+                mask.set(x, y, true);
+            }
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,194 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.support.common.FileUtil;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of the batched inference on CPU, comparing the latency of a
+ * batch, the latency per sub-image and the throughput with the execution
+ * of one sub-image at a time, and checking that the worker does not
+ * allocate per sub-image in steady state.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BatchInferenceBenchmarkTest {
+    private static final String TAG = "BatchInferenceBenchmark";
+
+    private static final int TILES = 16;
+    private static final int[] BATCH_SIZES = {1, 2, 4, 8};
+
+    private InterpreterPool interpreterPool;
+    private int size;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        size = ModelRegistry.getInstance(context)
+                .getModel(ModelRegistry.DEFAULT_MODEL_FILENAME).getInputSize();
+        interpreterPool = new InterpreterPool(
+                FileUtil.loadMappedFile(context, ModelRegistry.DEFAULT_MODEL_FILENAME), 1,
+                InferenceBackend.CPU, 1);
+    }
+
+    @After
+    public void tearDown() {
+        interpreterPool.close();
+    }
+
+    @Test
+    public void batchedInference_matchesSingleTileInference() throws Exception {
+        final int[][] tiles = createTiles();
+        float[] expected = null;
+
+        for (final int batchSize : BATCH_SIZES) {
+            float[] result = interpreterPool.submit(new Callable<float[]>() {
+                @Override
+                public float[] call() {
+                    return runTiles(tiles, batchSize);
+                }
+            }).get();
+
+            if (expected == null) {
+                expected = result;
+            } else {
+                assertArrayEquals(expected, result, 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void steadyStateInference_doesNotAllocate() throws Exception {
+        final int[][] tiles = createTiles();
+
+        for (final int batchSize : BATCH_SIZES) {
+            long allocations = interpreterPool.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return countAllocations(tiles, batchSize);
+                }
+            }).get();
+
+            assertEquals("Objects allocated with batch size " + batchSize, 0, allocations);
+        }
+    }
+
+    /**
+     * Run the model on all tiles in batches, as the workers of the
+     * pipeline do, counting the objects allocated by the worker thread
+     * while inputs are loaded and outputs are read.
+     *
+     * <p>The objects allocated by the interpreter to wrap its arguments
+     * are not under control of the application, so they are only logged.
+     * The allocation counters are deprecated, but still the only way to
+     * count the allocations of a single thread.</p>
+     *
+     * @return the number of objects allocated outside the interpreter.
+     */
+    @SuppressWarnings("deprecation")
+    private long countAllocations(int[][] tiles, int batchSize) {
+        TileBuffers buffers = interpreterPool.getTileBuffers(size, batchSize);
+        Interpreter interpreter = interpreterPool.getInterpreter(batchSize, size);
+        byte[] output = new byte[size * size];
+        // The first invocation allocates the tensors.
+        buffers.rewind();
+        interpreter.run(buffers.input, buffers.output);
+
+        long allocations = 0;
+        long interpreterAllocations = 0;
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            for (int first = 0; first < TILES; first += batchSize) {
+                int start = Debug.getThreadAllocCount();
+                for (int k = 0; k < batchSize; k++) {
+                    buffers.loadInput(k, tiles[first + k]);
+                }
+                buffers.rewind();
+                int runStart = Debug.getThreadAllocCount();
+                interpreter.run(buffers.input, buffers.output);
+                int runEnd = Debug.getThreadAllocCount();
+                for (int k = 0; k < batchSize; k++) {
+                    for (int i = 0; i < output.length; i++) {
+                        float probability = buffers.getProbability(k * output.length + i);
+                        output[i] = (byte) (Math.min(1f, Math.max(0f, probability)) * 255 + 0.5f);
+                    }
+                }
+                allocations += runStart - start + Debug.getThreadAllocCount() - runEnd;
+                interpreterAllocations += runEnd - runStart;
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        Log.i(TAG, "Batch size " + batchSize + ": "
+                + "objects allocated by the interpreter per batch "
+                + ((float) interpreterAllocations * batchSize / TILES));
+        return allocations;
+    }
+
+    /**
+     * Run the model on all tiles in batches, logging the timings.
+     *
+     * @return the output of the model for all tiles.
+     */
+    private float[] runTiles(int[][] tiles, int batchSize) {
+        TileBuffers buffers = interpreterPool.getTileBuffers(size, batchSize);
+        Interpreter interpreter = interpreterPool.getInterpreter(batchSize, size);
+        // The first invocation allocates the tensors.
+        buffers.rewind();
+        interpreter.run(buffers.input, buffers.output);
+
+        float[] result = new float[TILES * size * size];
+        long maxLatency = 0;
+        long start = SystemClock.elapsedRealtime();
+        for (int first = 0; first < TILES; first += batchSize) {
+            long batchStart = SystemClock.elapsedRealtime();
+            for (int k = 0; k < batchSize; k++) {
+                buffers.loadInput(k, tiles[first + k]);
+            }
+            buffers.rewind();
+            interpreter.run(buffers.input, buffers.output);
+            // Read through the buffers, which dequantize the output of
+            // quantized models.
+            for (int i = 0, j = first * size * size; i < batchSize * size * size; i++, j++) {
+                result[j] = buffers.getProbability(i);
+            }
+            maxLatency = Math.max(maxLatency, SystemClock.elapsedRealtime() - batchStart);
+        }
+        long total = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Batch size " + batchSize + ": "
+                + "batch latency " + maxLatency + " ms, "
+                + "latency per sub-image " + ((float) maxLatency / batchSize) + " ms, "
+                + "throughput " + (TILES * 1000f / total) + " sub-images/s");
+        return result;
+    }
+
+    private int[][] createTiles() {
+        Random random = new Random(42);
+        int[][] tiles = new int[TILES][size * size];
+        for (int[] tile : tiles) {
+            for (int i = 0; i < tile.length; i++) {
+                tile[i] = 0xff000000 | random.nextInt(0x1000000);
+            }
+        }
+        return tiles;
+    }
+}
@@ -0,0 +1,160 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+/**
+ * Binary mask that stores one bit per pixel.
+ *
+ * <p>Each row is packed in an integral number of 64-bit words, so rows
+ * can be processed independently. A set bit marks a pixel that belongs
+ * to Wally.</p>
+ */
+class BinaryMask {
+    /**
+     * The width of the mask.
+     */
+    private final int width;
+    /**
+     * The height of the mask.
+     */
+    private final int height;
+
+    /**
+     * The number of words used by each row.
+     */
+    private final int wordsPerRow;
+
+    /**
+     * The bits of the mask in row-major order.
+     */
+    private final long[] bits;
+
+    /**
+     * Create an empty mask.
+     *
+     * @param width The width of the mask.
+     * @param height The height of the mask.
+     */
+    BinaryMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.bits = new long[wordsPerRow * height];
+    }
+
+    /**
+     * Get the width of the mask.
+     *
+     * @return the width in pixels.
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the height of the mask.
+     *
+     * @return the height in pixels.
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Check whether the given pixel is set.
+     *
+     * @param x The x coordinate of the pixel.
+     * @param y The y coordinate of the pixel.
+     * @return <code>true</code> if the pixel is set, <code>false</code> otherwise.
+     */
+    boolean get(int x, int y) {
+        return (bits[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Set or clear the given pixel.
+     *
+     * @param x The x coordinate of the pixel.
+     * @param y The y coordinate of the pixel.
+     * @param value Whether the pixel is set.
+     */
+    void set(int x, int y, boolean value) {
+        int index = y * wordsPerRow + (x >>> 6);
+        if (value) {
+            bits[index] |= 1L << x;
+        } else {
+            bits[index] &= ~(1L << x);
+        }
+    }
+
+    /**
+     * Find the first set pixel of a row at or after the given position.
+     *
+     * @param y The row.
+     * @param fromX The first x coordinate to be checked.
+     * @return the x coordinate of the set pixel, or -1 if there is none.
+     */
+    int nextSetPixel(int y, int fromX) {
+        int base = y * wordsPerRow;
+        int u = fromX >>> 6;
+        if (u >= wordsPerRow) {
+            return -1;
+        }
+        long word = bits[base + u] & (-1L << fromX);
+        while (true) {
+            if (word != 0) {
+                int x = (u << 6) + Long.numberOfTrailingZeros(word);
+                return x < width ? x : -1;
+            }
+            if (++u == wordsPerRow) {
+                return -1;
+            }
+            word = bits[base + u];
+        }
+    }
+
+    /**
+     * Find the first clear pixel of a row at or after the given position.
+     *
+     * @param y The row.
+     * @param fromX The first x coordinate to be checked.
+     * @return the x coordinate of the clear pixel, or the width of the
+     *         mask if there is none.
+     */
+    int nextClearPixel(int y, int fromX) {
+        int base = y * wordsPerRow;
+        int u = fromX >>> 6;
+        if (u >= wordsPerRow) {
+            return width;
+        }
+        long word = ~bits[base + u] & (-1L << fromX);
+        while (true) {
+            if (word != 0) {
+                return Math.min(width, (u << 6) + Long.numberOfTrailingZeros(word));
+            }
+            if (++u == wordsPerRow) {
+                return width;
+            }
+            word = ~bits[base + u];
+        }
+    }
+
+    /**
+     * Render the mask as a bitmap, in which set pixels are white and the
+     * other ones are black.
+     *
+     * @return the rendered bitmap.
+     */
+    Bitmap toBitmap() {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                row[x] = get(x, y) ? Color.WHITE : Color.BLACK;
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,194 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Utility that extracts the detections of Wally from a mask as its
+ * 8-connected components.
+ *
+ * <p>The mask is scanned once row by row, grouping set pixels in runs.
+ * Each run is merged with the touching runs of the previous row using
+ * a union-find structure, so the time is linear in the size of the mask
+ * and memory depends only on the number of runs.</p>
+ */
+final class ConnectedComponents {
+    /**
+     * Initial capacity of the arrays of runs.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * First x coordinate of each run.
+     */
+    private int[] runStart = new int[INITIAL_CAPACITY];
+    /**
+     * Last x coordinate of each run, exclusive.
+     */
+    private int[] runEnd = new int[INITIAL_CAPACITY];
+    /**
+     * Row of each run.
+     */
+    private int[] runRow = new int[INITIAL_CAPACITY];
+    /**
+     * Parent of each run in the union-find structure.
+     */
+    private int[] parent = new int[INITIAL_CAPACITY];
+    /**
+     * The number of runs.
+     */
+    private int runsNumber = 0;
+
+    private ConnectedComponents() {}
+
+    /**
+     * Extract the detections from a mask.
+     *
+     * @param mask The mask.
+     * @param probabilities The probabilities the mask derives from.
+     * @return the detections, ranked by decreasing score.
+     */
+    static List<Detection> extract(BinaryMask mask, ProbabilityMap probabilities) {
+        ConnectedComponents components = new ConnectedComponents();
+        components.label(mask);
+        return components.collect(probabilities);
+    }
+
+    /**
+     * Find the runs of the mask and merge the connected ones.
+     *
+     * @param mask The mask.
+     */
+    private void label(BinaryMask mask) {
+        int width = mask.getWidth();
+        int previousFirst = 0;
+        for (int y = 0; y < mask.getHeight(); y++) {
+            int first = runsNumber;
+            // Runs of the previous row are in [previousFirst, first) and
+            // sorted by x coordinate.
+            int p = previousFirst;
+            int x = mask.nextSetPixel(y, 0);
+            while (x >= 0) {
+                int end = mask.nextClearPixel(y, x);
+                int r = addRun(x, end, y);
+                // Skip previous runs that end before this one, including
+                // diagonal neighbours.
+                while (p < first && runEnd[p] < x) {
+                    p++;
+                }
+                for (int q = p; q < first && runStart[q] <= end; q++) {
+                    union(r, q);
+                }
+                x = end < width ? mask.nextSetPixel(y, end) : -1;
+            }
+            previousFirst = first;
+        }
+    }
+
+    /**
+     * Group runs by component and compute the properties of components.
+     *
+     * @param probabilities The probabilities the mask derives from.
+     * @return the detections, ranked by decreasing score.
+     */
+    private List<Detection> collect(ProbabilityMap probabilities) {
+        // Map each root to the index of its component.
+        int[] component = new int[runsNumber];
+        Arrays.fill(component, -1);
+        List<Rect> bounds = new ArrayList<>();
+        List<long[]> sums = new ArrayList<>();
+
+        for (int r = 0; r < runsNumber; r++) {
+            int root = find(r);
+            int c = component[root];
+            int y = runRow[r];
+            if (c < 0) {
+                c = component[root] = bounds.size();
+                bounds.add(new Rect(runStart[r], y, runEnd[r], y + 1));
+                sums.add(new long[2]);
+            } else {
+                bounds.get(c).union(runStart[r], y, runEnd[r], y + 1);
+            }
+            long[] sum = sums.get(c);
+            sum[0] += runEnd[r] - runStart[r];
+            for (int x = runStart[r]; x < runEnd[r]; x++) {
+                sum[1] += probabilities.get(x, y);
+            }
+        }
+
+        List<Detection> detections = new ArrayList<>(bounds.size());
+        for (int c = 0; c < bounds.size(); c++) {
+            long[] sum = sums.get(c);
+            detections.add(new Detection(bounds.get(c), (int) sum[0],
+                    sum[1] / (255f * sum[0])));
+        }
+        Collections.sort(detections, new Comparator<Detection>() {
+            @Override
+            public int compare(Detection a, Detection b) {
+                return Float.compare(b.getScore(), a.getScore());
+            }
+        });
+        return detections;
+    }
+
+    /**
+     * Add a run, growing the arrays if needed.
+     *
+     * @param start The first x coordinate of the run.
+     * @param end The last x coordinate of the run, exclusive.
+     * @param y The row of the run.
+     * @return the index of the run.
+     */
+    private int addRun(int start, int end, int y) {
+        if (runsNumber == parent.length) {
+            int capacity = parent.length * 2;
+            runStart = Arrays.copyOf(runStart, capacity);
+            runEnd = Arrays.copyOf(runEnd, capacity);
+            runRow = Arrays.copyOf(runRow, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+        }
+        runStart[runsNumber] = start;
+        runEnd[runsNumber] = end;
+        runRow[runsNumber] = y;
+        parent[runsNumber] = runsNumber;
+        return runsNumber++;
+    }
+
+    /**
+     * Find the root of the component of a run, compressing the path.
+     *
+     * @param r The index of the run.
+     * @return the index of the root run.
+     */
+    private int find(int r) {
+        while (parent[r] != r) {
+            parent[r] = parent[parent[r]];
+            r = parent[r];
+        }
+        return r;
+    }
+
+    /**
+     * Merge the components of two runs.
+     *
+     * @param a The index of a run.
+     * @param b The index of another run.
+     */
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA != rootB) {
+            // Keep the oldest run as root.
+            if (rootA < rootB) {
+                parent[rootB] = rootA;
+            } else {
+                parent[rootA] = rootB;
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
@@ -13,6 +15,11 @@ import android.view.MotionEvent;
  * Custom image view used to enable move and zoom the displayed image.
  */
 public class CustomImageView extends androidx.appcompat.widget.AppCompatImageView {
+    /**
+     * Maximum scale used to focus on a region of the image.
+     */
+    private static final float MAX_FOCUS_SCALE = 4f;
+
     /**
      * States in which the image view can be.
      */
@@ -133,6 +140,54 @@ public class CustomImageView extends androidx.appcompat.widget.AppCompatImageVie
         return true;
     }
 
+    /**
+     * Redraw only the area of the view that shows the given region of
+     * the image.
+     *
+     * @param region The region of the image that has changed.
+     */
+    public void invalidateImageRegion(Rect region) {
+        if (matrix == null) {
+            invalidate();
+            return;
+        }
+        RectF dirty = new RectF(region);
+        matrix.mapRect(dirty);
+        Rect bounds = new Rect();
+        dirty.roundOut(bounds);
+        invalidate(bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+
+    /**
+     * Move and zoom the image to show the given region at the center of
+     * the view.
+     *
+     * @param region The region of the image to be shown.
+     */
+    public void focusOn(final Rect region) {
+        if (getWidth() == 0 || getHeight() == 0) {
+            // Wait until the view is laid out.
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    focusOn(region);
+                }
+            });
+            return;
+        }
+        // The region takes at most a third of the view, to show also
+        // what is around it.
+        float scale = Math.min(
+                getWidth() / (3f * Math.max(1, region.width())),
+                getHeight() / (3f * Math.max(1, region.height())));
+        scale = Math.min(scale, MAX_FOCUS_SCALE);
+        matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate(getWidth() / 2f - region.exactCenterX() * scale,
+                getHeight() / 2f - region.exactCenterY() * scale);
+        setImageMatrix(matrix);
+    }
+
     /**
      * Calculate the distance between two pointer of the given event.
      *
@@ -0,0 +1,74 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.graphics.Rect;
+
+/**
+ * Region of the image in which Wally has been detected, corresponding
+ * to a connected component of the mask.
+ */
+class Detection {
+    /**
+     * The bounding box of the region.
+     */
+    private final Rect bounds;
+
+    /**
+     * The number of pixels of the region.
+     */
+    private final int area;
+
+    /**
+     * The mean probability of the pixels of the region.
+     */
+    private final float meanProbability;
+
+    /**
+     * Initialize the detection.
+     *
+     * @param bounds The bounding box of the region.
+     * @param area The number of pixels of the region.
+     * @param meanProbability The mean probability of the pixels, between 0 and 1.
+     */
+    Detection(Rect bounds, int area, float meanProbability) {
+        this.bounds = bounds;
+        this.area = area;
+        this.meanProbability = meanProbability;
+    }
+
+    /**
+     * Get the bounding box of the region.
+     *
+     * @return the bounding box in image coordinates.
+     */
+    Rect getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Get the number of pixels of the region.
+     *
+     * @return the area in pixels.
+     */
+    int getArea() {
+        return area;
+    }
+
+    /**
+     * Get the mean probability of the pixels of the region.
+     *
+     * @return the probability, between 0 and 1.
+     */
+    float getMeanProbability() {
+        return meanProbability;
+    }
+
+    /**
+     * Get the score used to rank detections, which is the sum of the
+     * probabilities of the pixels of the region.
+     *
+     * @return the score.
+     */
+    float getScore() {
+        return area * meanProbability;
+    }
+}
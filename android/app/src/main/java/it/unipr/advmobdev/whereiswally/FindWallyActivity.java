@@ -9,20 +9,25 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
 import android.widget.Button;
-import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
+import android.widget.SeekBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.switchmaterial.SwitchMaterial;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * This is the activity where the magic happens.
@@ -55,16 +60,36 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
      */
     private MaterialButton maskButton;
 
+    /**
+     * Panel to change the threshold of the result.
+     */
+    private LinearLayout thresholdPanel;
+    /**
+     * Label that shows the current threshold.
+     */
+    private TextView thresholdLabel;
+
     /**
      * Image view that shows input or output image.
      */
-    private ImageView imageView;
+    private CustomImageView imageView;
 
     /**
      * ViewModel to handle displayed images during device rotation.
      */
     private FindWallyViewModel viewModel;
 
+    /**
+     * The execution of the model in progress, or <code>null</code> if none.
+     */
+    private ModelExecutor modelExecutor;
+
+    /**
+     * Reporter that updates the progress bar and the output image at most
+     * once per frame.
+     */
+    private ProgressReporter progressReporter;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -73,6 +98,17 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
         loadingOverlay = findViewById(R.id.loading_overlay);
         progressBar = findViewById(R.id.loading_progress);
         imageView = findViewById(R.id.img_input);
+        progressReporter = new ProgressReporter(new ProgressReporter.Listener() {
+            @Override
+            public void onProgressChanged(int progress) {
+                updateProgress(progress);
+            }
+
+            @Override
+            public void onRegionCompleted(Rect region) {
+                imageView.invalidateImageRegion(region);
+            }
+        });
 
         String uri = getIntent().getStringExtra(EXTRA_IMG_URI);
         try {
@@ -84,13 +120,13 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
                     .get(FindWallyViewModel.class);
             if (viewModel.isModelExecuted()) {
                 imageView.setImageBitmap(viewModel.isVisibleOutputMask() ?
-                        viewModel.getOutputMask() : viewModel.getOutputImage());
+                        viewModel.getOutputMaskBitmap() : viewModel.getOutputImage());
             } else {
                 viewModel.loadInputImage(uri, getContentResolver());
                 imageView.setImageBitmap(viewModel.getInputImage());
             }
 
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             finish();
             return;
@@ -106,6 +142,25 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
         Button cancelButton = findViewById(R.id.btn_cancel);
         cancelButton.setOnClickListener(this);
 
+        // Setup the threshold of the result.
+        thresholdPanel = findViewById(R.id.threshold_panel);
+        thresholdLabel = findViewById(R.id.txt_threshold);
+        SeekBar thresholdSeekBar = findViewById(R.id.seek_threshold);
+        thresholdSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                showThreshold(progress + 1);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                changeThreshold(seekBar.getProgress() + 1);
+            }
+        });
+
         if (viewModel.isModelExecuted()) {
             // Show correct button when activity is created.
             searchButton.setAlpha(0);
@@ -116,6 +171,11 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
             maskButton.setVisibility(View.VISIBLE);
             maskButton.setIcon(getDrawable(viewModel.isVisibleOutputMask() ?
                     R.drawable.ic_baseline_visibility_24 : R.drawable.ic_baseline_visibility_off_24));
+            thresholdPanel.setAlpha(1);
+            thresholdPanel.setVisibility(View.VISIBLE);
+            int threshold = viewModel.getResult().getThreshold();
+            thresholdSeekBar.setProgress(threshold - 1);
+            showThreshold(threshold);
         }
     }
 
@@ -135,17 +195,28 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
                 boolean isVisible = viewModel.isVisibleOutputMask();
                 viewModel.setIsVisibleOutputMask(!isVisible);
                 imageView.setImageBitmap(isVisible ?
-                        viewModel.getOutputImage() : viewModel.getOutputMask());
+                        viewModel.getOutputImage() : viewModel.getOutputMaskBitmap());
                 maskButton.setIcon(getDrawable(isVisible ?
                         R.drawable.ic_baseline_visibility_off_24 : R.drawable.ic_baseline_visibility_24));
                 break;
 
             case R.id.btn_cancel:
+                cancelSearch();
                 finish();
                 break;
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            // Stop the search, so that its workers do not keep running
+            // tiles for an activity that is gone.
+            cancelSearch();
+        }
+    }
+
     /**
      * Open the dialog for set the configuration for model execution.
      */
@@ -153,7 +224,7 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
         FindWallyConfigDialogFragment.RunModelCallable callable =
                 new FindWallyConfigDialogFragment.RunModelCallable() {
             @Override
-            public void run(int parallelTasksNumber, boolean isGpuAccelerationEnabled) {
+            public void run(SearchConfig config) {
                 // Hide Find Wally button.
                 searchButton.animate()
                         .alpha(0)
@@ -168,9 +239,8 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
                 loadingOverlay.setVisibility(View.VISIBLE);
                 loadingOverlay.animate().alpha(1);
 
-                // Load and run the model using background tasks.
-                new ModelExecutor(FindWallyActivity.this,
-                        parallelTasksNumber, isGpuAccelerationEnabled).start();
+                // Look for a previous result, otherwise run the model.
+                startModelExecutor(config);
             }
         };
 
@@ -178,6 +248,88 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
         dialog.show(getSupportFragmentManager(), "execution-config");
     }
 
+    /**
+     * Start the search in background, unless the activity has been
+     * closed.
+     *
+     * <p>The executor loads the result from the cache if the same image
+     * has already been searched with the same parameters, otherwise it
+     * runs the model.</p>
+     *
+     * @param config The configuration of the search.
+     */
+    private synchronized void startModelExecutor(SearchConfig config) {
+        if (isFinishing()) {
+            return;
+        }
+        modelExecutor = new ModelExecutor(this, config);
+        modelExecutor.start();
+    }
+
+    /**
+     * Cancel the execution of the model in progress, if any.
+     */
+    private synchronized void cancelSearch() {
+        if (modelExecutor != null) {
+            modelExecutor.cancel();
+            modelExecutor = null;
+        }
+    }
+
+    /**
+     * Show the given threshold as a probability.
+     *
+     * @param threshold The quantized threshold, between 1 and 255.
+     */
+    private void showThreshold(int threshold) {
+        thresholdLabel.setText(getString(R.string.txt_threshold, threshold / 255f));
+    }
+
+    /**
+     * Derive again the output image and mask with a new threshold.
+     *
+     * <p>The model is not executed again: the probabilities predicted by
+     * the model are thresholded in background, one change at a time, and
+     * changes superseded by a later one before they start are dropped.</p>
+     *
+     * @param threshold The quantized threshold, between 1 and 255.
+     */
+    private void changeThreshold(final int threshold) {
+        final int request = viewModel.newThresholdRequest();
+        viewModel.getThresholdExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!viewModel.isLastThresholdRequest(request)) {
+                    // Superseded by a later change of the slider.
+                    return;
+                }
+                try {
+                    viewModel.setThreshold(threshold);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    showError("A thread was interrupted");
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        imageView.setImageBitmap(viewModel.isVisibleOutputMask() ?
+                                viewModel.getOutputMaskBitmap() : viewModel.getOutputImage());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Get the URI of the input image.
+     *
+     * @return the URI of the input image as string.
+     */
+    public String getInputUri() {
+        return viewModel.getInputUri();
+    }
+
     /**
      * Get the input image.
      *
@@ -187,26 +339,75 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
         return viewModel.getInputImage();
     }
 
+    /**
+     * Get the subsampling factor of the input image with respect to the
+     * file searched by the model.
+     *
+     * @return the subsampling factor, a power of 2.
+     */
+    int getInputSampleSize() {
+        return viewModel.getInputSampleSize();
+    }
+
+    /**
+     * Get the executor used to render results.
+     *
+     * @return the executor.
+     */
+    Executor getRenderExecutor() {
+        return viewModel.getRenderExecutor();
+    }
+
+    /**
+     * Get the number of rendering tasks run in parallel.
+     *
+     * @return the number of tasks.
+     */
+    int getRenderParallelism() {
+        return viewModel.getRenderParallelism();
+    }
+
+    /**
+     * Get the reporter of the progress of the search.
+     *
+     * @return the progress reporter.
+     */
+    ProgressReporter getProgressReporter() {
+        return progressReporter;
+    }
+
     /**
      * Update the progress of the spinner.
      *
      * If the provided progress is not between 0 and 100, the mode of the
      * progress bar wil be set to indeterminate.
      *
+     * This method must be called on the main thread.
+     *
      * @param progress The new progress.
      */
-    public void updateProgress(final int progress) {
+    private void updateProgress(int progress) {
+        if (progress >= 0 && progress <= 100) {
+            if (progressBar.isIndeterminate()) {
+                progressBar.setIndeterminate(false);
+            }
+            progressBar.setProgress(progress);
+        } else {
+            progressBar.setIndeterminate(true);
+        }
+    }
+
+    /**
+     * Show the output image when the model execution starts, so that the
+     * result of each sub-image is visible as soon as it is available.
+     *
+     * @param outputImage The output image, updated during the execution.
+     */
+    public void onModelExecutionStart(final Bitmap outputImage) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                if (progress >= 0 && progress <= 100) {
-                    if (progressBar.isIndeterminate()) {
-                        progressBar.setIndeterminate(false);
-                    }
-                    progressBar.setProgress(progress);
-                } else {
-                    progressBar.setIndeterminate(true);
-                }
+                imageView.setImageBitmap(outputImage);
             }
         });
     }
@@ -214,20 +415,20 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
     /**
      * Show the output image when the model execution ends.
      *
-     * @param outputImage The output image to be shown.
-     * @param outputMask The output mask returned by the model.
+     * @param result The result of the search.
      * @param stats The statistics about execution.
      */
-    public void onModelExecutionEnd(final Bitmap outputImage,
-                                    final Bitmap outputMask,
+    public void onModelExecutionEnd(final SearchResult result,
                                     final Statistics stats) {
-        viewModel.setOutputImage(outputImage);
-        viewModel.setOutputMask(outputMask);
+        viewModel.setResult(result);
         viewModel.setStats(stats);
 
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                // Render the tiles not yet shown by the progress reporter.
+                progressReporter.flush();
+
                 // Hide loading spinner with a transition.
                 loadingOverlay.animate()
                         .alpha(0)
@@ -244,9 +445,18 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
                 // Show statistics button.
                 statsButton.setVisibility(View.VISIBLE);
                 statsButton.animate().alpha(1);
+                // Show threshold panel.
+                showThreshold(result.getThreshold());
+                thresholdPanel.setVisibility(View.VISIBLE);
+                thresholdPanel.animate().alpha(1);
 
                 // Show the output image.
-                imageView.setImageBitmap(outputImage);
+                imageView.setImageBitmap(result.getOutputImage());
+                // Jump to the most likely position of Wally.
+                List<Detection> detections = result.getDetections();
+                if (!detections.isEmpty()) {
+                    imageView.focusOn(detections.get(0).getBounds());
+                }
             }
         });
     }
@@ -271,7 +481,7 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
      */
     public static class FindWallyConfigDialogFragment extends DialogFragment {
         interface RunModelCallable {
-            void run(int parallelTasksNumber, boolean isGpuAccelerationEnabled);
+            void run(SearchConfig config);
         }
 
         private final RunModelCallable runModelCallable;
@@ -288,21 +498,99 @@ public class FindWallyActivity extends AppCompatActivity implements View.OnClick
 
             View view = getActivity().getLayoutInflater().inflate(R.layout.find_wally_dialog, null);
 
-            final SwitchMaterial gpuAccelerationInput = view.findViewById(R.id.input_gpuAccelerationEnabled);
+            final SwitchMaterial stopAtFirstFindInput = view.findViewById(R.id.input_stopAtFirstFind);
+            final AutoCompleteTextView detectionProbabilityInput = view.findViewById(R.id.input_detectionProbability);
+            final ArrayAdapter<String> probabilityAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            probabilityAdapter.addAll("0.5", "0.7", "0.9", "0.95");
+            detectionProbabilityInput.setAdapter(probabilityAdapter);
+            final AutoCompleteTextView detectionAreaInput = view.findViewById(R.id.input_detectionArea);
+            final ArrayAdapter<Integer> areaAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            areaAdapter.addAll(100, 200, 400, 800);
+            detectionAreaInput.setAdapter(areaAdapter);
+            final SwitchMaterial coarseToFineInput = view.findViewById(R.id.input_coarseToFine);
+            final AutoCompleteTextView coarseSampleSizeInput = view.findViewById(R.id.input_coarseSampleSize);
+            final ArrayAdapter<Integer> coarseSampleSizeAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            coarseSampleSizeAdapter.addAll(2, 4, 8);
+            coarseSampleSizeInput.setAdapter(coarseSampleSizeAdapter);
+            final AutoCompleteTextView coarseThresholdInput = view.findViewById(R.id.input_coarseThreshold);
+            final ArrayAdapter<Integer> coarseThresholdAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            coarseThresholdAdapter.addAll(1, 4, 16, 64);
+            coarseThresholdInput.setAdapter(coarseThresholdAdapter);
+            final SwitchMaterial skipUniformTilesInput = view.findViewById(R.id.input_skipUniformTiles);
+            final ModelRegistry registry = ModelRegistry.getInstance(requireContext());
+            final AutoCompleteTextView modelInput = view.findViewById(R.id.input_model);
+            final ArrayAdapter<ModelInfo> modelAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            final List<ModelInfo> models = registry.getModels();
+            modelAdapter.addAll(models);
+            modelInput.setAdapter(modelAdapter);
+            if (!models.isEmpty()) {
+                // The default model is the first one.
+                modelInput.setText(models.get(0).toString(), false);
+            }
+            final AutoCompleteTextView backendInput = view.findViewById(R.id.input_backend);
+            final ArrayAdapter<InferenceBackend> backendAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            backendAdapter.addAll(InferenceBackend.values());
+            backendInput.setAdapter(backendAdapter);
             final AutoCompleteTextView parallelTasksInput = view.findViewById(R.id.input_parallelTasksNumber);
-            final ArrayAdapter<Integer> adapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
-            adapter.addAll(1, 2, 3, 4);
+            final ArrayAdapter<String> adapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            adapter.addAll(getString(R.string.auto), "1", "2", "3", "4");
             parallelTasksInput.setAdapter(adapter);
+            final AutoCompleteTextView intraOpThreadsInput = view.findViewById(R.id.input_intraOpThreadsNumber);
+            final ArrayAdapter<String> threadsAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            threadsAdapter.addAll(getString(R.string.auto), "1", "2", "4", "8");
+            intraOpThreadsInput.setAdapter(threadsAdapter);
+            final AutoCompleteTextView subImageSizeInput = view.findViewById(R.id.input_subImageSize);
+            final ArrayAdapter<String> sizeAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            sizeAdapter.addAll(getString(R.string.auto), "256", "512", "1024");
+            subImageSizeInput.setAdapter(sizeAdapter);
+            final AutoCompleteTextView batchSizeInput = view.findViewById(R.id.input_batchSize);
+            final ArrayAdapter<Integer> batchAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            batchAdapter.addAll(1, 2, 4, 8);
+            batchSizeInput.setAdapter(batchAdapter);
+            final AutoCompleteTextView overlapInput = view.findViewById(R.id.input_overlap);
+            final ArrayAdapter<Integer> overlapAdapter = new ArrayAdapter<>(requireContext(), R.layout.list_item);
+            overlapAdapter.addAll(0, 16, 32, 64);
+            overlapInput.setAdapter(overlapAdapter);
 
             builder.setView(view)
                     .setTitle("Find Wally")
                     .setPositiveButton("Run", new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
-                            runModelCallable.run(
-                                    Integer.parseInt(parallelTasksInput.getText().toString()),
-                                    gpuAccelerationInput.isChecked()
-                            );
+                            SearchConfig config = new SearchConfig();
+                            String parallelTasks = parallelTasksInput.getText().toString();
+                            config.setParallelTasksNumber(parallelTasks.equals(getString(R.string.auto)) ?
+                                    SearchConfig.AUTO_PARALLEL_TASKS_NUMBER : Integer.parseInt(parallelTasks));
+                            config.setBackend(InferenceBackend.fromLabel(
+                                    backendInput.getText().toString()));
+                            String intraOpThreads = intraOpThreadsInput.getText().toString();
+                            config.setIntraOpThreadsNumber(intraOpThreads.equals(getString(R.string.auto)) ?
+                                    InferenceBackend.AUTO_INTRA_OP_THREADS_NUMBER : Integer.parseInt(intraOpThreads));
+                            ModelInfo model = registry.getModelByLabel(modelInput.getText().toString());
+                            if (model != null) {
+                                config.setModelFilename(model.getFilename());
+                            }
+                            String subImageSize = subImageSizeInput.getText().toString();
+                            if (!subImageSize.equals(getString(R.string.auto))) {
+                                config.setTileSize(Integer.parseInt(subImageSize));
+                            }
+                            config.setBatchSize(
+                                    Integer.parseInt(batchSizeInput.getText().toString()));
+                            config.setOverlap(
+                                    Integer.parseInt(overlapInput.getText().toString()));
+                            config.setStopAtFirstFindEnabled(stopAtFirstFindInput.isChecked());
+                            config.setDetectionProbability(Float.parseFloat(
+                                    detectionProbabilityInput.getText().toString()));
+                            config.setDetectionArea(
+                                    Integer.parseInt(detectionAreaInput.getText().toString()));
+                            config.setCoarseToFineEnabled(coarseToFineInput.isChecked());
+                            config.setCoarseSampleSize(
+                                    Integer.parseInt(coarseSampleSizeInput.getText().toString()));
+                            config.setCoarseThreshold(
+                                    Integer.parseInt(coarseThresholdInput.getText().toString()));
+                            config.setMinContentVariance(skipUniformTilesInput.isChecked() ?
+                                    SearchConfig.DEFAULT_MIN_CONTENT_VARIANCE : 0);
+                            runModelCallable.run(config);
                         }
                     })
                     .setNegativeButton(R.string.close, new DialogInterface.OnClickListener() {
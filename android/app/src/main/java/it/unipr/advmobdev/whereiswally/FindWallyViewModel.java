@@ -8,26 +8,61 @@ import android.net.Uri;
 import androidx.lifecycle.ViewModel;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * View model used to maintain FindWallyActivity's data during rotation.
  */
 public class FindWallyViewModel extends ViewModel {
     /**
-     * The input image.
+     * Maximum height and width of the input image kept in memory.
+     */
+    static final int MAX_PREVIEW_SIZE = 2048;
+
+    /**
+     * The URI of the input image as string.
+     */
+    private String inputUri;
+
+    /**
+     * The input image, subsampled to fit the maximum preview size.
      */
     private Bitmap inputImage;
 
     /**
-     * The output image.
+     * The subsampling factor of the input image with respect to the file.
+     */
+    private int inputSampleSize = 1;
+
+    /**
+     * The result of the search.
+     */
+    private SearchResult result;
+
+    /**
+     * The executor used to render the result again with a new threshold.
+     */
+    private ExecutorService renderExecutor;
+
+    /**
+     * The single thread that applies changes of threshold, in order.
      */
-    private Bitmap outputImage;
+    private ExecutorService thresholdExecutor;
 
     /**
-     * The output mask.
+     * The number of the last requested change of threshold.
      */
-    private Bitmap outputMask;
+    private final AtomicInteger lastThresholdRequest = new AtomicInteger();
+
+    /**
+     * The output mask rendered as a bitmap, created only when shown.
+     */
+    private volatile Bitmap outputMaskBitmap;
 
     /**
      * Whether the output mask is showed.
@@ -42,26 +77,83 @@ public class FindWallyViewModel extends ViewModel {
     /**
      * Load input image from storage.
      *
+     * <p>The image is subsampled by a power of 2 until it fits the maximum
+     * preview size, so that the memory used to show the image and the
+     * result does not grow with the resolution of the photo. The search
+     * reads the tiles at full resolution from the file.</p>
+     *
      * @param uri The URI of the image as string.
      * @param contentResolver The content resolver.
-     * @throws FileNotFoundException if the provided URI could not be opened.
+     * @throws IOException if the provided URI could not be opened or read.
      */
-    void loadInputImage(String uri, ContentResolver contentResolver) throws FileNotFoundException {
+    void loadInputImage(String uri, ContentResolver contentResolver) throws IOException {
         if (inputImage == null) {
-            InputStream is = contentResolver.openInputStream(Uri.parse(uri));
-            inputImage = BitmapFactory.decodeStream(is);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(uri, contentResolver, options);
+            int sampleSize = 1;
+            while (Math.max(options.outWidth, options.outHeight) / sampleSize > MAX_PREVIEW_SIZE) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            inputImage = decodeStream(uri, contentResolver, options);
+            inputSampleSize = sampleSize;
+            inputUri = uri;
+        }
+    }
+
+    /**
+     * Decode an image from storage.
+     *
+     * @param uri The URI of the image as string.
+     * @param contentResolver The content resolver.
+     * @param options The decoding options.
+     * @return the decoded image, or <code>null</code> if only the size is
+     *         decoded.
+     * @throws IOException if the provided URI could not be opened or read.
+     */
+    private static Bitmap decodeStream(String uri, ContentResolver contentResolver,
+                                       BitmapFactory.Options options) throws IOException {
+        InputStream is = contentResolver.openInputStream(Uri.parse(uri));
+        if (is == null) {
+            throw new FileNotFoundException("Unable to open " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(is, null, options);
+        } finally {
+            is.close();
         }
     }
 
+    /**
+     * Get the URI of the input image.
+     *
+     * @return the URI of the input image as string.
+     */
+    String getInputUri() {
+        return inputUri;
+    }
+
     /**
      * Get the input image.
      *
-     * @return the input image.
+     * @return the input image, subsampled to fit the maximum preview size.
      */
     Bitmap getInputImage() {
         return inputImage;
     }
 
+    /**
+     * Get the subsampling factor of the input image with respect to the
+     * file.
+     *
+     * @return the subsampling factor, a power of 2.
+     */
+    int getInputSampleSize() {
+        return inputSampleSize;
+    }
+
     /**
      * Check whether the model is executed.
      *
@@ -69,16 +161,26 @@ public class FindWallyViewModel extends ViewModel {
      *         are available, <code>false</code> otherwise.
      */
     boolean isModelExecuted() {
-        return outputImage != null && outputMask != null && stats != null;
+        return result != null && stats != null;
     }
 
     /**
-     * Set the output image.
+     * Set the result of the search.
      *
-     * @param outputImage The output image.
+     * @param result The result of the search.
      */
-    void setOutputImage(Bitmap outputImage) {
-        this.outputImage = outputImage;
+    void setResult(SearchResult result) {
+        this.result = result;
+        this.outputMaskBitmap = null;
+    }
+
+    /**
+     * Get the result of the search.
+     *
+     * @return the result if set, <code>null</code> otherwise.
+     */
+    SearchResult getResult() {
+        return result;
     }
 
     /**
@@ -87,25 +189,94 @@ public class FindWallyViewModel extends ViewModel {
      * @return the output image if set, <code>null</code> otherwise.
      */
     Bitmap getOutputImage() {
-        return outputImage;
+        return result == null ? null : result.getOutputImage();
+    }
+
+    /**
+     * Change the threshold of the result, updating the output image and
+     * the output mask without running the model again.
+     *
+     * <p>This method blocks until the output image is updated, so it must
+     * not be called from the UI thread.</p>
+     *
+     * @param threshold The quantized threshold, between 1 and 255.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void setThreshold(int threshold) throws InterruptedException {
+        result.setThreshold(threshold, getRenderExecutor(), getRenderParallelism());
+        outputMaskBitmap = null;
+    }
+
+    /**
+     * Get the executor that applies changes of threshold one at a time,
+     * creating it if needed.
+     *
+     * @return the executor.
+     */
+    synchronized Executor getThresholdExecutor() {
+        if (thresholdExecutor == null) {
+            thresholdExecutor = Executors.newSingleThreadExecutor();
+        }
+        return thresholdExecutor;
     }
 
     /**
-     * Set the output mask.
+     * Register a new change of threshold, which supersedes the previous
+     * ones.
      *
-     * @param outputMask The output mask.
+     * @return the number of the change.
      */
-    public void setOutputMask(Bitmap outputMask) {
-        this.outputMask = outputMask;
+    int newThresholdRequest() {
+        return lastThresholdRequest.incrementAndGet();
     }
 
     /**
-     * Get the output mask.
+     * Check whether a change of threshold is the last requested one.
      *
-     * @return the output mask if set, <code>null</code> otherwise.
+     * <p>A change superseded before it starts can be dropped, since its
+     * output would be immediately overwritten.</p>
+     *
+     * @param request The number of the change.
+     * @return <code>true</code> if no later change was requested,
+     *         <code>false</code> otherwise.
      */
-    public Bitmap getOutputMask() {
-        return outputMask;
+    boolean isLastThresholdRequest(int request) {
+        return lastThresholdRequest.get() == request;
+    }
+
+    /**
+     * Get the executor used to render results, creating it if needed.
+     *
+     * @return the executor.
+     */
+    synchronized Executor getRenderExecutor() {
+        if (renderExecutor == null) {
+            renderExecutor = Executors.newFixedThreadPool(getRenderParallelism());
+        }
+        return renderExecutor;
+    }
+
+    /**
+     * Get the number of rendering tasks run in parallel.
+     *
+     * @return the number of tasks.
+     */
+    int getRenderParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Get the output mask as a bitmap.
+     *
+     * <p>The bitmap is rendered the first time it is requested.</p>
+     *
+     * @return the output mask bitmap if the mask is set, <code>null</code> otherwise.
+     */
+    public Bitmap getOutputMaskBitmap() {
+        if (outputMaskBitmap == null && result != null) {
+            outputMaskBitmap = result.getMask().toBitmap();
+        }
+        return outputMaskBitmap;
     }
 
     /**
@@ -144,4 +315,14 @@ public class FindWallyViewModel extends ViewModel {
     public Statistics getStats() {
         return stats;
     }
-}
\ No newline at end of file
+
+    @Override
+    protected void onCleared() {
+        if (thresholdExecutor != null) {
+            thresholdExecutor.shutdown();
+        }
+        if (renderExecutor != null) {
+            renderExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package it.unipr.advmobdev.whereiswally;
+
+import org.tensorflow.lite.Delegate;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.gpu.GpuDelegate;
+
+/**
+ * Backend on which the interpreters run the model.
+ *
+ * <p>On CPU backends each worker runs a sub-image with one or more
+ * intra-op threads, so the cores of the device are split between the
+ * workers, which run sub-images in parallel, and the threads of each
+ * interpreter, which split a single invocation. The GPU backend runs the
+ * whole model on the GPU, so each interpreter uses a single thread.</p>
+ */
+enum InferenceBackend {
+    /**
+     * Reference kernels of TensorFlow Lite on CPU.
+     */
+    CPU("CPU") {
+        @Override
+        Delegate configure(Interpreter.Options options, int intraOpThreadsNumber) {
+            options.setNumThreads(intraOpThreadsNumber);
+            return null;
+        }
+    },
+
+    /**
+     * Kernels of the XNNPACK library on CPU, optimized for floating-point
+     * operations on ARM.
+     */
+    XNNPACK("CPU (XNNPACK)") {
+        @Override
+        Delegate configure(Interpreter.Options options, int intraOpThreadsNumber) {
+            options.setNumThreads(intraOpThreadsNumber);
+            options.setUseXNNPACK(true);
+            return null;
+        }
+    },
+
+    /**
+     * GPU delegate, which runs the supported operations on the GPU of the
+     * device.
+     */
+    GPU("GPU") {
+        @Override
+        Delegate configure(Interpreter.Options options, int intraOpThreadsNumber) {
+            GpuDelegate delegate = new GpuDelegate();
+            options.addDelegate(delegate);
+            options.setNumThreads(1);
+            return delegate;
+        }
+
+        @Override
+        int getIntraOpThreadsNumber(int parallelTasksNumber, int requestedThreadsNumber) {
+            return 1;
+        }
+    };
+
+    /**
+     * Value of the number of intra-op threads that lets the backend split
+     * the cores of the device between the workers.
+     */
+    static final int AUTO_INTRA_OP_THREADS_NUMBER = 0;
+
+    /**
+     * The name shown to the user.
+     */
+    private final String label;
+
+    /**
+     * Initialize the backend.
+     *
+     * @param label The name shown to the user.
+     */
+    InferenceBackend(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Configure the options of an interpreter to run on this backend.
+     *
+     * @param options The options of the interpreter.
+     * @param intraOpThreadsNumber The number of threads of the interpreter.
+     * @return the delegate added to the options, which must be closed
+     *         after the interpreter, or <code>null</code> if none.
+     */
+    abstract Delegate configure(Interpreter.Options options, int intraOpThreadsNumber);
+
+    /**
+     * Get the number of threads of each interpreter.
+     *
+     * <p>If the number is not requested, the cores of the device are split
+     * evenly between the parallel tasks, so that workers and intra-op
+     * threads do not compete for the same cores.</p>
+     *
+     * @param parallelTasksNumber The number of parallel tasks.
+     * @param requestedThreadsNumber The requested number of threads, or
+     *                               {@link #AUTO_INTRA_OP_THREADS_NUMBER}.
+     * @return the number of intra-op threads, at least one.
+     */
+    int getIntraOpThreadsNumber(int parallelTasksNumber, int requestedThreadsNumber) {
+        if (requestedThreadsNumber != AUTO_INTRA_OP_THREADS_NUMBER) {
+            return requestedThreadsNumber;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, cores / Math.max(1, parallelTasksNumber));
+    }
+
+    /**
+     * Check whether the backend supports inputs with a shape different
+     * from the one of the model, i.e. larger sub-images and batches.
+     *
+     * @return <code>true</code> if the input can be resized,
+     *         <code>false</code> otherwise.
+     */
+    boolean isInputResizable() {
+        return this != GPU;
+    }
+
+    /**
+     * Get the backend with the given name shown to the user.
+     *
+     * @param label The name shown to the user.
+     * @return the backend.
+     * @throws IllegalArgumentException if no backend has this name.
+     */
+    static InferenceBackend fromLabel(String label) throws IllegalArgumentException {
+        for (InferenceBackend backend : values()) {
+            if (backend.label.equals(label)) {
+                return backend;
+            }
+        }
+        throw new IllegalArgumentException("Unknown backend " + label);
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -0,0 +1,265 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.tensorflow.lite.Delegate;
+import org.tensorflow.lite.Interpreter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pool of worker threads in which every worker owns a private interpreter.
+ *
+ * <p>A TensorFlow Lite interpreter is not thread-safe, so it cannot be
+ * shared between tasks running in parallel. Each worker creates its own
+ * interpreter the first time a task asks for it and reuses it for all
+ * following tasks, until the pool is closed.</p>
+ */
+class InterpreterPool implements Executor {
+    private static final String TAG = "InterpreterPool";
+
+    /**
+     * Resources confined to a single worker thread.
+     */
+    private static class Worker {
+        private Interpreter interpreter;
+        private Delegate delegate;
+        private TileBuffers tileBuffers;
+    }
+
+    /**
+     * The memory-mapped model file.
+     */
+    private final MappedByteBuffer model;
+
+    /**
+     * The number of worker threads.
+     */
+    private final int workersNumber;
+
+    /**
+     * The backend on which interpreters run the model.
+     */
+    private final InferenceBackend backend;
+
+    /**
+     * The number of threads of each interpreter.
+     */
+    private final int intraOpThreadsNumber;
+
+    /**
+     * The thread pool with a fixed number of workers.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The resources of the calling worker thread.
+     */
+    private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    /**
+     * Initialize the pool.
+     *
+     * @param model The memory-mapped model file.
+     * @param workersNumber The number of worker threads.
+     * @param backend The backend on which interpreters run the model.
+     * @param intraOpThreadsNumber The number of threads of each interpreter.
+     */
+    InterpreterPool(MappedByteBuffer model, int workersNumber, InferenceBackend backend,
+                    int intraOpThreadsNumber) {
+        this.model = model;
+        this.workersNumber = workersNumber;
+        this.backend = backend;
+        this.intraOpThreadsNumber = intraOpThreadsNumber;
+        this.executor = Executors.newFixedThreadPool(workersNumber, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runnable.run();
+                        } finally {
+                            // The interpreter and its delegate must be
+                            // released by the thread that created them.
+                            releaseWorker();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Get the interpreter owned by the calling worker thread.
+     *
+     * <p>The interpreter is created on first use. This method must be
+     * called only from tasks executed by this pool.</p>
+     *
+     * @return the interpreter instance.
+     * @throws IllegalArgumentException if model file is badly encoded.
+     */
+    Interpreter getInterpreter() throws IllegalArgumentException {
+        Worker w = worker.get();
+        if (w.interpreter == null) {
+            Interpreter.Options options = new Interpreter.Options();
+            w.delegate = backend.configure(options, intraOpThreadsNumber);
+            w.interpreter = new Interpreter(model, options);
+        }
+        return w.interpreter;
+    }
+
+    /**
+     * Get the interpreter owned by the calling worker thread, with the
+     * input resized to the given batch and tile size.
+     *
+     * <p>The model is fully convolutional, so it can run on tiles larger
+     * than the ones it has been trained on and on several tiles at once.
+     * The tensors are allocated again only when the shape changes.</p>
+     *
+     * @param batchSize The number of tiles in the input.
+     * @param size The height and width of the input tiles.
+     * @return the interpreter instance.
+     * @throws IllegalArgumentException if model file is badly encoded or
+     *                                  the shape is not supported.
+     */
+    Interpreter getInterpreter(int batchSize, int size) throws IllegalArgumentException {
+        Interpreter interpreter = getInterpreter();
+        int[] shape = interpreter.getInputTensor(0).shape();
+        if (shape[0] != batchSize || shape[1] != size || shape[2] != size) {
+            interpreter.resizeInput(0, new int[] {batchSize, size, size, shape[3]});
+        }
+        return interpreter;
+    }
+
+    /**
+     * Get the tile buffers owned by the calling worker thread.
+     *
+     * <p>Buffers are allocated on first use and whenever a different size
+     * is requested. Their layout follows the format of the input and
+     * output tensors of the model. This method must be called only from
+     * tasks executed by this pool.</p>
+     *
+     * @param size The height and width of the sub-images.
+     * @param batchSize The number of sub-images in a batch.
+     * @return the tile buffers.
+     * @throws IllegalArgumentException if model file is badly encoded or
+     *                                  its tensors have an unsupported type.
+     */
+    TileBuffers getTileBuffers(int size, int batchSize) throws IllegalArgumentException {
+        Worker w = worker.get();
+        if (w.tileBuffers == null || w.tileBuffers.size != size
+                || w.tileBuffers.batchSize != batchSize) {
+            Interpreter interpreter = getInterpreter();
+            w.tileBuffers = new TileBuffers(size, batchSize,
+                    TensorFormat.of(interpreter.getInputTensor(0)),
+                    TensorFormat.of(interpreter.getOutputTensor(0)));
+        }
+        return w.tileBuffers;
+    }
+
+    /**
+     * Create the interpreter of every worker in advance.
+     *
+     * <p>Each warm-up task waits for the others, so that every worker of
+     * the pool executes exactly one of them.</p>
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws IllegalArgumentException if model file is badly encoded.
+     */
+    void warmUp() throws InterruptedException, IllegalArgumentException {
+        final CountDownLatch latch = new CountDownLatch(workersNumber);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < workersNumber; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    try {
+                        // Buffers are allocated for the current input shape.
+                        int[] shape = getInterpreter().getInputTensor(0).shape();
+                        getTileBuffers(shape[1], 1);
+                    } finally {
+                        latch.countDown();
+                    }
+                    latch.await();
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> result : executor.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IllegalArgumentException) {
+                    throw (IllegalArgumentException) e.getCause();
+                }
+            }
+        }
+    }
+
+    /**
+     * Submit a task to be executed by a worker of this pool.
+     *
+     * @param task The task.
+     * @param <T> The type of value returned from the task.
+     * @return the future of the task.
+     */
+    <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        executor.execute(command);
+    }
+
+    /**
+     * Close the pool.
+     *
+     * <p>Workers terminate after completing the submitted tasks, closing
+     * their interpreter before exiting.</p>
+     */
+    void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Release the resources owned by the calling worker thread.
+     */
+    private void releaseWorker() {
+        Worker w = worker.get();
+        if (w.interpreter != null) {
+            w.interpreter.close();
+            w.interpreter = null;
+        }
+        if (w.delegate instanceof Closeable) {
+            try {
+                ((Closeable) w.delegate).close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close the delegate", e);
+            }
+        }
+        w.delegate = null;
+        w.tileBuffers = null;
+        worker.remove();
+    }
+}
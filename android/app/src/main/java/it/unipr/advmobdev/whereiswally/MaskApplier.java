@@ -0,0 +1,137 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Utility that applies a mask to an image, converting to grayscale the
+ * pixels that do not belong to the mask.
+ *
+ * <p>Pixels are read from the source image and written to the output
+ * one, so a region can be rendered again when its mask changes. Pixels
+ * are read and written in stripes of rows with bulk
+ * <code>getPixels</code>/<code>setPixels</code> calls, instead of one
+ * call for each pixel.</p>
+ */
+final class MaskApplier {
+    /**
+     * Height of the stripes processed at once.
+     */
+    static final int STRIPE_HEIGHT = 32;
+
+    private MaskApplier() {}
+
+    /**
+     * Apply the mask to the given region of the image.
+     *
+     * @param source The source image.
+     * @param image The output image, with the same size of the source.
+     * @param mask The mask to be applied.
+     * @param left The left side of the region.
+     * @param top The top side of the region.
+     * @param right The right side of the region, exclusive.
+     * @param bottom The bottom side of the region, exclusive.
+     * @param buffer The buffer used to process a stripe of the region,
+     *               with room for at least one row.
+     */
+    static void applyMask(Bitmap source, Bitmap image, BinaryMask mask,
+                          int left, int top, int right, int bottom,
+                          int[] buffer)
+    {
+        int width = right - left;
+        int rows = Math.max(1, buffer.length / width);
+        int rgb, r, g, b, gray;
+        for (int y0 = top; y0 < bottom; y0 += rows) {
+            int height = Math.min(rows, bottom - y0);
+            source.getPixels(buffer, 0, width, left, y0, width, height);
+            for (int j = 0, i = 0; j < height; j++) {
+                for (int x = left; x < right; x++, i++) {
+                    // Convert to grayscale pixels that not corresponds
+                    // to a white pixel in the mask.
+                    if (!mask.get(x, y0 + j)) {
+                        rgb = buffer[i];
+                        r = (rgb >> 16) & 0xff;
+                        g = (rgb >> 8) & 0xff;
+                        b = rgb & 0xff;
+                        gray = (r + g + b) / 3;
+                        buffer[i] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+                    }
+                }
+            }
+            image.setPixels(buffer, 0, width, left, y0, width, height);
+        }
+    }
+
+    /**
+     * Apply the mask to the whole image, splitting the work in stripes
+     * that are processed in parallel by the given executor.
+     *
+     * @param source The source image.
+     * @param image The output image, with the same size of the source.
+     * @param mask The mask to be applied.
+     * @param executor The executor that processes stripes.
+     * @param parallelism The number of stripe tasks run in parallel.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    static void applyMask(Bitmap source, Bitmap image, BinaryMask mask,
+                          Executor executor, int parallelism)
+            throws InterruptedException
+    {
+        applyThreshold(source, image, null, 0, mask, executor, parallelism);
+    }
+
+    /**
+     * Threshold the probabilities into the mask and apply it to the whole
+     * image, splitting the work in stripes that are processed in parallel
+     * by the given executor.
+     *
+     * @param source The source image.
+     * @param image The output image, with the same size of the source.
+     * @param probabilities The probabilities to be thresholded, or
+     *                      <code>null</code> to apply the mask as it is.
+     * @param threshold The quantized probability at or above which a
+     *                  pixel belongs to the mask.
+     * @param mask The mask to be written and applied.
+     * @param executor The executor that processes stripes.
+     * @param parallelism The number of stripe tasks run in parallel.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    static void applyThreshold(final Bitmap source, final Bitmap image,
+                               final ProbabilityMap probabilities, final int threshold,
+                               final BinaryMask mask, Executor executor, final int parallelism)
+            throws InterruptedException
+    {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int stripes = (height + STRIPE_HEIGHT - 1) / STRIPE_HEIGHT;
+        final CountDownLatch latch = new CountDownLatch(parallelism);
+        for (int k = 0; k < parallelism; k++) {
+            final int first = k;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Each task processes one stripe every
+                        // <parallelism> stripes, reusing the same buffer.
+                        // Rows of the mask are independent, so stripes
+                        // can be thresholded in parallel too.
+                        int[] buffer = new int[width * STRIPE_HEIGHT];
+                        for (int s = first; s < stripes; s += parallelism) {
+                            int top = s * STRIPE_HEIGHT;
+                            int bottom = Math.min(height, top + STRIPE_HEIGHT);
+                            if (probabilities != null) {
+                                probabilities.threshold(mask, 0, top, width, bottom, threshold);
+                            }
+                            applyMask(source, image, mask, 0, top, width, bottom, buffer);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+    }
+}
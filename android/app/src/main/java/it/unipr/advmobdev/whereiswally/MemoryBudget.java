@@ -0,0 +1,148 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Debug;
+
+/**
+ * Memory budget of a search, used to admit only the workers whose
+ * footprint fits in the memory available when the search starts.
+ *
+ * <p>The footprint of each stage is estimated from the sizes of its
+ * buffers: the result of the search lives on the heap for the whole
+ * search, the tiles in flight of each worker on the heap and the tensors
+ * of its interpreter in native memory. The budget also records the peak
+ * memory observed during the search.</p>
+ */
+class MemoryBudget {
+    /**
+     * Fraction of the free memory that the search can use, leaving room
+     * for the UI and for estimation errors.
+     */
+    private static final float USABLE_FRACTION = 0.75f;
+
+    /**
+     * Heap memory available to the search in bytes.
+     */
+    private final long heapBudget;
+
+    /**
+     * Native memory available to the search in bytes.
+     */
+    private final long nativeBudget;
+
+    /**
+     * Peak heap memory used by the process in bytes.
+     */
+    private long peakHeapBytes = 0;
+
+    /**
+     * Peak native memory allocated by the process in bytes.
+     */
+    private long peakNativeBytes = 0;
+
+    /**
+     * Initialize the budget with the memory available now.
+     *
+     * @param context The context.
+     */
+    MemoryBudget(Context context) {
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        heapBudget = (long) ((runtime.maxMemory() - usedHeap) * USABLE_FRACTION);
+
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        // Below the threshold the system starts killing processes.
+        nativeBudget = (long) (Math.max(0, memoryInfo.availMem - memoryInfo.threshold)
+                * USABLE_FRACTION);
+        sample();
+    }
+
+    /**
+     * Estimate the heap memory used by the result of a search: the output
+     * image, the probability map and the mask.
+     *
+     * @param width The width of the output image.
+     * @param height The height of the output image.
+     * @return the estimated size in bytes.
+     */
+    static long estimateResultBytes(int width, int height) {
+        long pixels = (long) width * height;
+        return pixels * 4 + pixels + pixels / 8;
+    }
+
+    /**
+     * Estimate the heap memory used by the tiles in flight of a worker.
+     *
+     * @param tileSize The height and width of tiles.
+     * @param batchSize The number of tiles run in a single invocation.
+     * @return the estimated size in bytes.
+     */
+    static long estimateWorkerHeapBytes(int tileSize, int batchSize) {
+        // Pixels and quantized output of each tile.
+        return (long) tileSize * tileSize * batchSize * TilePipeline.BATCHES_PER_WORKER * 5;
+    }
+
+    /**
+     * Estimate the native memory used by the interpreter of a worker.
+     *
+     * @param tileSize The height and width of tiles.
+     * @param batchSize The number of tiles run in a single invocation.
+     * @return the estimated size in bytes.
+     */
+    static long estimateWorkerNativeBytes(int tileSize, int batchSize) {
+        // Input and output buffers, then tensors of the interpreter.
+        return (long) tileSize * tileSize * batchSize
+                * (16 + ModelExecutor.INTERPRETER_BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Get the maximum number of workers that fit in the budget together
+     * with the result of the search.
+     *
+     * @param tileSize The height and width of tiles.
+     * @param batchSize The number of tiles run in a single invocation.
+     * @param resultBytes The heap memory reserved for the result.
+     * @return the number of workers, which may be zero.
+     */
+    int getMaxWorkers(int tileSize, int batchSize, long resultBytes) {
+        long heapWorkers = (heapBudget - resultBytes)
+                / estimateWorkerHeapBytes(tileSize, batchSize);
+        long nativeWorkers = nativeBudget / estimateWorkerNativeBytes(tileSize, batchSize);
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE,
+                Math.min(heapWorkers, nativeWorkers)));
+    }
+
+    /**
+     * Record the memory used now, updating the peaks.
+     *
+     * <p>This method can be called only by the thread that runs the
+     * search.</p>
+     */
+    void sample() {
+        Runtime runtime = Runtime.getRuntime();
+        peakHeapBytes = Math.max(peakHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+        peakNativeBytes = Math.max(peakNativeBytes, Debug.getNativeHeapAllocatedSize());
+    }
+
+    /**
+     * Get the peak heap memory observed.
+     *
+     * @return the size in bytes.
+     */
+    long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    /**
+     * Get the peak native memory observed.
+     *
+     * @return the size in bytes.
+     */
+    long getPeakNativeBytes() {
+        return peakNativeBytes;
+    }
+}
@@ -1,114 +1,43 @@
 package it.unipr.advmobdev.whereiswally;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-
-import org.tensorflow.lite.DataType;
-import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.gpu.GpuDelegate;
-import org.tensorflow.lite.support.common.FileUtil;
-import org.tensorflow.lite.support.common.ops.NormalizeOp;
-import org.tensorflow.lite.support.image.ImageProcessor;
-import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.support.image.ops.ResizeWithCropOrPadOp;
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+import android.graphics.Rect;
+import android.os.SystemClock;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Background task used to load and run the model.
  */
 class ModelExecutor extends Thread {
     /**
-     * Model filename in assets folder.
+     * Candidate sizes of sub-images when running on CPU, as multiples of
+     * the input size of the model, in decreasing order of preference.
      */
-    private static final String MODEL_FILENAME = "unet_v2.f1lo-b14-e60-lr0.001.44.tflite";
+    private static final int[] TILE_SIZE_FACTORS = {4, 2, 1};
+
     /**
-     * Height and width of sub-images.
+     * Estimated native memory used by an interpreter for each input pixel,
+     * mostly for the intermediate activations of the network.
      */
-    private static final int SUB_IMAGE_SIZE = 256;
+    static final long INTERPRETER_BYTES_PER_PIXEL = 512;
 
     /**
-     * Task that predict the mask for a single sub-image.
+     * Maximum time in milliseconds to wait for a cancelled search to
+     * release its resources before starting a new one.
      */
-    private static class SubImageTask implements Callable<Bitmap> {
-        private final Interpreter interpreter;
-        private final Bitmap subImage;
-        private final Runnable onTaskEnd;
-
-        /**
-         * Initialize task to apply model on a sub-image.
-         *
-         * @param interpreter The model to be run.
-         * @param subImage The image on which the model will be applied.
-         * @param onTaskEnd The runnable called at the end of the task.
-         */
-        SubImageTask(Interpreter interpreter, Bitmap subImage, Runnable onTaskEnd) {
-            this.interpreter = interpreter;
-            this.subImage = subImage;
-            this.onTaskEnd = onTaskEnd;
-        }
+    private static final long CANCEL_TIMEOUT_MS = 5000;
 
-        @Override
-        public Bitmap call() {
-            // Input image: buffer of floats
-            // Dimensions: SUB_IMAGE_SIZE x SUB_IMAGE_SIZE x 3 channels
-            TensorImage input = new TensorImage(DataType.FLOAT32);
-            input.load(subImage);
-            // Normalize input: converting RGB values from [0, 255] to [0, 1].
-            ImageProcessor inputProcessor = new ImageProcessor.Builder()
-                    .add(new NormalizeOp(0f, 255f))
-                    .build();
-            input = inputProcessor.process(input);
-
-            // Output mask: buffer of floats
-            // Dimensions: SUB_IMAGE_SIZE x SUB_IMAGE_SIZE x 1 channel
-            TensorBuffer output = TensorBuffer.createFixedSize(
-                    new int[]{1, SUB_IMAGE_SIZE, SUB_IMAGE_SIZE}, DataType.FLOAT32);
-
-            // Run the model.
-            interpreter.run(input.getBuffer(), output.getBuffer());
-
-            Bitmap outputMask = convertByteBufferToBitmap(output.getBuffer());
-            onTaskEnd.run();
-            return outputMask;
-        }
-
-        /**
-         * Convert output buffer to bitmap mask.
-         *
-         * @param byteBuffer The output buffer.
-         * @return the mask as bitmap.
-         */
-        private Bitmap convertByteBufferToBitmap(ByteBuffer byteBuffer) {
-            int size = SUB_IMAGE_SIZE;
-
-            byteBuffer.rewind();
-            byteBuffer.order(ByteOrder.nativeOrder());
-            int[] pixels = new int[size * size];
-            for (int i = 0; i < size * size; i++) {
-                if (byteBuffer.getFloat() > 0.5) {
-                    pixels[i] = Color.WHITE;
-                } else {
-                    pixels[i] = Color.BLACK;
-                }
-            }
-            Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
-            bitmap.setPixels(pixels, 0, size, 0, 0, size, size);
-            return bitmap;
-        }
-    }
+    /**
+     * The search in progress, or <code>null</code> if none.
+     */
+    private static ModelExecutor activeExecutor;
 
     /**
      * Reference to the android activity.
@@ -116,272 +45,840 @@ class ModelExecutor extends Thread {
     private FindWallyActivity activity;
 
     /**
-     * The number of parallel tasks.
+     * The configuration of the search.
+     */
+    private final SearchConfig config;
+
+    /**
+     * The model used in this execution.
+     */
+    private ModelInfo model;
+
+    /**
+     * Height and width of sub-images used in this execution.
+     */
+    private int tileSize;
+
+    /**
+     * The number of sub-images run in a single invocation of the model.
+     */
+    private int batchSize = 1;
+
+    /**
+     * The statistics about this execution.
      */
-    private final int parallelTasksNumber;
+    private Statistics stats;
 
     /**
-     * Whether the GPU acceleration is enabled.
+     * The number of parallel tasks used in this execution.
      */
-    private final boolean isGpuAccelerationEnabled;
+    private int parallelTasksNumber;
 
     /**
-     * Current progress on the execution of tasks.
+     * The number of threads of each interpreter used in this execution.
      */
-    private float progress = 0;
+    private int intraOpThreadsNumber;
+
     /**
-     * Progress increment based on the number of tasks.
+     * Whether the search has been cancelled.
      */
-    private float progressIncrement;
+    private volatile boolean isCancelled = false;
 
     /**
      * Initialize the model executor.
      *
      * @param activity The activity that launched the execution.
-     * @param parallelTasksNumber The number of parallel tasks.
-     * @param isGpuAccelerationEnabled Whether the GPU acceleration is enabled.
+     * @param config The configuration of the search.
      */
-    ModelExecutor(FindWallyActivity activity, int parallelTasksNumber, boolean isGpuAccelerationEnabled) {
+    ModelExecutor(FindWallyActivity activity, SearchConfig config) {
         super();
         this.activity = activity;
-        this.parallelTasksNumber = parallelTasksNumber;
-        this.isGpuAccelerationEnabled = isGpuAccelerationEnabled;
+        this.config = config;
+    }
+
+    /**
+     * Cancel the search.
+     *
+     * <p>The thread is interrupted, so the decoder stops reading tiles,
+     * queued tiles are recycled and the workers stop after the batch in
+     * progress, leaving the interpreters idle. Nothing is reported to the
+     * activity after the cancellation and the result is not cached.</p>
+     */
+    void cancel() {
+        isCancelled = true;
+        interrupt();
+    }
+
+    /**
+     * Check whether the search has been cancelled.
+     *
+     * @return <code>true</code> if the search has been cancelled,
+     *         <code>false</code> otherwise.
+     */
+    boolean isCancelled() {
+        return isCancelled;
     }
 
     @Override
     public void run() {
-        Statistics stats = new Statistics();
-        stats.setGpuAccelerationEnabled(isGpuAccelerationEnabled);
-        stats.setParallelTasksNumber(parallelTasksNumber);
+        // Only one search runs at a time, so that searches started one
+        // after the other do not compete for the workers and the memory.
+        ModelExecutor previous = setActiveExecutor(this);
+        try {
+            if (previous != null) {
+                previous.cancel();
+                previous.join(CANCEL_TIMEOUT_MS);
+            }
+            if (!isCancelled) {
+                execute();
+            }
+
+        } catch (InterruptedException e) {
+            // Cancelled while waiting for the previous search.
+
+        } finally {
+            clearActiveExecutor(this);
+        }
+    }
+
+    /**
+     * Set the search in progress.
+     *
+     * @param executor The new search.
+     * @return the previous search, or <code>null</code> if none.
+     */
+    private static synchronized ModelExecutor setActiveExecutor(ModelExecutor executor) {
+        ModelExecutor previous = activeExecutor;
+        activeExecutor = executor;
+        return previous;
+    }
+
+    /**
+     * Clear the search in progress, if it is still the given one.
+     *
+     * @param executor The completed search.
+     */
+    private static synchronized void clearActiveExecutor(ModelExecutor executor) {
+        if (activeExecutor == executor) {
+            activeExecutor = null;
+        }
+    }
+
+    /**
+     * Show an error to the user, unless the search has been cancelled.
+     *
+     * @param message The error message.
+     */
+    private void showError(String message) {
+        if (!isCancelled) {
+            activity.showError(message);
+        }
+    }
+
+    /**
+     * Load and run the model on the input image.
+     */
+    private void execute() {
+        stats = new Statistics();
+        stats.setBackend(config.getBackend());
         stats.triggerTotalExecutionStart();
 
-        Interpreter interpreter;
+        // The size of sub-images and the format of tensors are read from
+        // the model file.
+        model = ModelRegistry.getInstance(activity).getModel(config.getModelFilename());
+        if (model == null) {
+            showError("Model file not exists or cannot be opened");
+            return;
+        }
+        stats.setModel(model);
+
+        // Sub-images are decoded from the file only when needed.
+        TileSource tileSource;
         try {
-            interpreter = loadInterpreter();
+            tileSource = TileSource.open(activity.getContentResolver(), activity.getInputUri());
 
         } catch (IOException e) {
             e.printStackTrace();
-            activity.showError("Model file not exists or cannot be opened");
+            showError("Image file cannot be opened");
+            return;
+        }
+        int width = tileSource.getWidth();
+        int height = tileSource.getHeight();
+        stats.setOriginalSize(width, height);
+        // The GPU delegate supports only inputs with a single sub-image.
+        batchSize = config.getBackend().isInputResizable() ? config.getBatchSize() : 1;
+        stats.setBatchSize(batchSize);
+
+        // The result has the size of the preview of the image shown to the
+        // user, which does not grow with the resolution of the file.
+        Bitmap source = activity.getInputImage();
+        MemoryBudget budget = new MemoryBudget(activity);
+        int maxWorkers = resolveTileSize(width, height, source, budget);
+
+        // Results are cached by the size of sub-images actually used,
+        // which in automatic mode depends on the memory available.
+        ResultCache cache = ResultCache.getInstance(activity);
+        String cacheKey = ResultCache.computeKey(source, config, model, tileSize);
+        if (loadCachedResult(cache, cacheKey, source, width, height)) {
+            tileSource.close();
             return;
+        }
 
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-            activity.showError("Model file is badly encoded");
+        // Determine how many sub-images and tasks will be created for each
+        // axis. Sub-images on the borders are virtually padded with zeros.
+        int overlap = Math.min(config.getOverlap(), tileSize / 2);
+        TileGrid grid = new TileGrid(width, height, tileSize, overlap);
+        stats.setPaddedSize(grid.getPaddedWidth(), grid.getPaddedHeight());
+        stats.setOverlap(overlap);
+        stats.setTasksNumber(grid.size());
+
+        ModelSession session = ModelSession.getInstance(activity);
+        InterpreterPool interpreterPool = prepareInterpreterPool(session, tileSource, grid,
+                maxWorkers);
+        if (interpreterPool == null) {
+            tileSource.close();
             return;
         }
 
-        Bitmap image = activity.getInputImage();
-        stats.setOriginalSize(image.getWidth(), image.getHeight());
-        image = makeSizeMultipleOfSubImage(image);
-        stats.setPaddedSize(image.getWidth(), image.getHeight());
-
-        // Determine how many sub-images and tasks will be created for each axis.
-        int numTasksX = image.getWidth() / SUB_IMAGE_SIZE;
-        int numTasksY = image.getHeight() / SUB_IMAGE_SIZE;
-        int numTasks = numTasksX * numTasksY;
-        stats.setTasksNumber(numTasks);
-        progressIncrement = 100f / numTasks;
-
-        // Associate each sub-image to a single task.
-        List<Callable<Bitmap>> tasks = getTaskList(interpreter, image, numTasksX, numTasksY);
-        // Execute all tasks using a thread pool with a fixed number of threads.
-        ExecutorService executor = Executors.newFixedThreadPool(parallelTasksNumber);
-        Bitmap mask = null;
+        // The output image is shown from the beginning and each tile is
+        // converted as soon as its mask is available. The image is drawn
+        // by the view, so it is written only on the main thread.
+        Bitmap image = source.copy(Bitmap.Config.ARGB_8888, true);
+        activity.onModelExecutionStart(image);
+
+        // Compose the probabilities of all tiles, blending them where tiles
+        // overlap, and threshold them into the mask to be applied.
+        ProbabilityMap probabilities = new ProbabilityMap(source.getWidth(),
+                source.getHeight(), grid, activity.getInputSampleSize());
+        BinaryMask mask = new BinaryMask(source.getWidth(), source.getHeight());
+        boolean[] writtenTiles = new boolean[grid.size()];
+        TilePipeline.TileWriter writer = createWriter(probabilities, mask, writtenTiles, budget);
+        ProgressReporter.TileRenderer renderer = createRenderer(grid, source, image,
+                probabilities, mask);
+
+        TilePipeline pipeline = createPipeline(interpreterPool, parallelTasksNumber,
+                session.getTileCache());
+        boolean isCompleted = false;
+        boolean isPartial = false;
         try {
             stats.triggerModelExecutionStart();
-            activity.updateProgress(0);
-            List<Future<Bitmap>> results = executor.invokeAll(tasks);
-            activity.updateProgress(-1);
+            int[] tasks = selectTasks(pipeline, grid, renderer);
+            runFinePass(pipeline, session, tileSource, grid, tasks, writer, writtenTiles, budget);
+            isPartial = renderSkippedTiles(tasks, writtenTiles);
+            activity.getProgressReporter().setIndeterminate(true);
             stats.triggerModelExecutionEnd();
+            isCompleted = true;
 
-            // Create the final mask to be applied on the image.
-            mask = composeSubMasks(image, results, numTasksX, numTasksY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            showError("Image file cannot be opened");
 
         } catch (InterruptedException e) {
             e.printStackTrace();
-            activity.showError("A thread was interrupted");
+            showError("A thread was interrupted");
 
         } catch (ExecutionException e) {
             e.printStackTrace();
-            activity.showError(e.getMessage());
+            showExecutionError(e);
+
+        } catch (RejectedExecutionException e) {
+            // The session has been released to free memory.
+            e.printStackTrace();
+            showError("Search aborted due to low memory");
 
         } finally {
-            interpreter.close();
+            tileSource.close();
         }
 
-        if (mask != null) {
-            applyMask(image, mask);
+        budget.sample();
+        stats.setPeakMemory(budget.getPeakHeapBytes(), budget.getPeakNativeBytes());
 
-            // Restore the original size of the image.
-            image = restoreInitialSize(image);
-            mask = restoreInitialSize(mask);
-
-            // Show final result to the user.
-            stats.triggerTotalExecutionEnd();
-            activity.onModelExecutionEnd(image, mask, stats);
+        if (isCompleted && !isCancelled) {
+            finishSearch(cache, cacheKey, source, image, probabilities, mask, isPartial);
         }
     }
 
     /**
-     * Load model file from assets and create interpreter instance.
+     * Choose the size of sub-images and the maximum number of workers
+     * that fit in the memory available now, together with the result of
+     * the search.
      *
-     * @return the interpreter instance.
+     * <p>With automatic parallelism, the size of sub-images is chosen for
+     * a single task, then the tasks that fit in memory are tuned for that
+     * size.</p>
      *
-     * @throws IOException if model file not exists or cannot be opened.
-     * @throws IllegalArgumentException if model file is badly encoded.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param source The preview of the image, with the size of the result.
+     * @param budget The memory budget of the search.
+     * @return the maximum number of workers, at least 1.
      */
-    private Interpreter loadInterpreter() throws IOException, IllegalArgumentException {
-        MappedByteBuffer model = FileUtil.loadMappedFile(activity, MODEL_FILENAME);
-
-        Interpreter.Options options = new Interpreter.Options();
-        if (isGpuAccelerationEnabled) {
-            // The GPU Delegate allows the interpreter to run appropriate
-            // operations on the device's GPU.
-            options.addDelegate(new GpuDelegate());
+    private int resolveTileSize(int width, int height, Bitmap source, MemoryBudget budget) {
+        int parallelTasksNumber = config.getParallelTasksNumber();
+        boolean isAutoParallelism =
+                parallelTasksNumber == SearchConfig.AUTO_PARALLEL_TASKS_NUMBER;
+        tileSize = chooseTileSize(width, height, isAutoParallelism ? 1 : parallelTasksNumber);
+
+        long resultBytes = MemoryBudget.estimateResultBytes(source.getWidth(), source.getHeight());
+        int maxWorkers = budget.getMaxWorkers(tileSize, batchSize, resultBytes);
+        if (maxWorkers == 0 && tileSize > model.getInputSize()) {
+            // Not even one worker fits: fall back to the smallest sub-images.
+            tileSize = model.getInputSize();
+            maxWorkers = budget.getMaxWorkers(tileSize, batchSize, resultBytes);
         }
-        // Ensuring that interpreter uses only one thread for each sub-image.
-        options.setNumThreads(1);
-
-        return new Interpreter(model, options);
+        stats.setTileSize(tileSize);
+        return Math.max(1, maxWorkers);
     }
 
     /**
-     * Make height and width of the image multiple of SUB_IMAGE_SIZE.
+     * Show the cached result of the same search, if any.
      *
-     * <p>This method performs a zero-padding to fit the correct size.</p>
-     *
-     * @param image The image to be processed.
-     * @return the precessed image.
-     */
-    private Bitmap makeSizeMultipleOfSubImage(Bitmap image) {
-        TensorImage tensorImage = TensorImage.fromBitmap(image);
-
-        int size = SUB_IMAGE_SIZE;
-        int height = image.getHeight();
-        int width = image.getWidth();
-        // Calculate new height and width.
-        if (height % size != 0) {
-            height += size - height % size;
+     * @param cache The cache of results.
+     * @param cacheKey The key of the search.
+     * @param source The preview of the image, with the size of the result.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return <code>true</code> if the search is over, because the result
+     *         was found or the lookup failed, <code>false</code> if the
+     *         model has to be run.
+     */
+    private boolean loadCachedResult(ResultCache cache, String cacheKey, Bitmap source,
+                                     int width, int height) {
+        SearchResult cachedResult;
+        try {
+            cachedResult = cache.load(cacheKey, source,
+                    activity.getRenderExecutor(), activity.getRenderParallelism());
+
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            showError("A thread was interrupted");
+            return true;
+        }
+        if (cachedResult == null) {
+            return false;
         }
-        if (width % size != 0) {
-            width += size - width % size;
+        stats.setPaddedSize(width, height);
+        stats.setDetections(cachedResult.getDetections(), 0);
+        stats.setCacheHit(true, cache.getHitRate());
+        stats.triggerTotalExecutionEnd();
+        if (!isCancelled) {
+            activity.onModelExecutionEnd(cachedResult, stats);
         }
+        return true;
+    }
+
+    /**
+     * Choose the number of workers and get the pool of interpreters that
+     * run the model, kept warm by the session.
+     *
+     * @param session The session that keeps the interpreters.
+     * @param tileSource The source of tiles, used to calibrate the
+     *                   number of workers.
+     * @param grid The grid of tiles.
+     * @param maxWorkers The maximum number of workers that fit in memory.
+     * @return the pool of interpreters, or <code>null</code> if an error
+     *         has been shown.
+     */
+    private InterpreterPool prepareInterpreterPool(ModelSession session, TileSource tileSource,
+                                                   TileGrid grid, int maxWorkers) {
+        InferenceBackend backend = config.getBackend();
+        try {
+            parallelTasksNumber = resolveParallelTasksNumber(session, tileSource, grid,
+                    maxWorkers);
+            stats.setParallelTasksNumber(parallelTasksNumber);
+            // Split the cores between the workers and the threads of each
+            // interpreter.
+            intraOpThreadsNumber = backend.getIntraOpThreadsNumber(parallelTasksNumber,
+                    config.getIntraOpThreadsNumber());
+            stats.setIntraOpThreadsNumber(intraOpThreadsNumber);
+
+            // Reuse the model and interpreters kept warm by the session.
+            stats.setWarmSession(session.isWarm(parallelTasksNumber, backend,
+                    intraOpThreadsNumber, model.getFilename()));
+            return session.getInterpreterPool(parallelTasksNumber, backend,
+                    intraOpThreadsNumber, model.getFilename());
 
-        ImageProcessor imageProcessor = new ImageProcessor.Builder()
-                .add(new ResizeWithCropOrPadOp(height, width))
-                .build();
-        tensorImage = imageProcessor.process(tensorImage);
-        return tensorImage.getBitmap();
+        } catch (IOException e) {
+            e.printStackTrace();
+            showError("Model file not exists or cannot be opened");
+
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            showError("A thread was interrupted");
+
+        } catch (RejectedExecutionException e) {
+            // The session has been released to free memory.
+            e.printStackTrace();
+            showError("Search aborted due to low memory");
+        }
+        return null;
     }
 
     /**
-     * Create task list composed by callable objects that returns the mask
-     * associated to the provided sub-image using the same interpreter.
+     * Choose the number of workers, tuning it for the device when
+     * parallelism is automatic.
      *
-     * @param interpreter The TensorFlow Lite interpreter.
-     * @param image The input image.
-     * @param numSubImagesX The number of sub-images along the x-axis.
-     * @param numSubImagesY The number of sub-images along the y-axis.
-     * @return the list of callable objects.
-     */
-    private List<Callable<Bitmap>> getTaskList(Interpreter interpreter,
-                                               Bitmap image,
-                                               int numSubImagesX,
-                                               int numSubImagesY)
+     * @param session The session that keeps the interpreters.
+     * @param tileSource The source of tiles, used to calibrate the
+     *                   number of workers.
+     * @param grid The grid of tiles.
+     * @param maxWorkers The maximum number of workers that fit in memory.
+     * @return the number of workers.
+     * @throws IOException if the model file cannot be opened.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    private int resolveParallelTasksNumber(ModelSession session, TileSource tileSource,
+                                           TileGrid grid, int maxWorkers)
+            throws IOException, InterruptedException
     {
-        Runnable onTaskEnd = new Runnable() {
+        int parallelTasksNumber = config.getParallelTasksNumber();
+        if (parallelTasksNumber != SearchConfig.AUTO_PARALLEL_TASKS_NUMBER) {
+            if (parallelTasksNumber > maxWorkers) {
+                stats.setMemoryLimited(true);
+                parallelTasksNumber = maxWorkers;
+            }
+            return parallelTasksNumber;
+        }
+
+        ParallelismTuner tuner = new ParallelismTuner(activity, session, config.getBackend(),
+                config.getIntraOpThreadsNumber(), model.getFilename(), tileSize, batchSize);
+        int tunedParallelTasksNumber = tuner.getTunedParallelTasksNumber();
+        parallelTasksNumber = Math.min(tunedParallelTasksNumber,
+                Math.min(tuner.getMaxParallelTasksNumber(), maxWorkers));
+        stats.setMemoryLimited(tunedParallelTasksNumber > maxWorkers);
+        if (parallelTasksNumber == 0) {
+            // First search with this configuration on the device.
+            long start = SystemClock.elapsedRealtime();
+            parallelTasksNumber = tuner.calibrate(tileSource, grid,
+                    config.getDetectionProbability(), maxWorkers);
+            stats.setCalibrationTime(SystemClock.elapsedRealtime() - start);
+        }
+        return parallelTasksNumber;
+    }
+
+    /**
+     * Create the writer that composes the output of tiles into the
+     * probabilities and the mask, and reports them to the user interface.
+     *
+     * @param probabilities The probabilities of the image.
+     * @param mask The mask to be thresholded.
+     * @param writtenTiles Set for each tile of the grid that is written.
+     * @param budget The memory budget of the search.
+     * @return the writer of tiles.
+     */
+    private TilePipeline.TileWriter createWriter(final ProbabilityMap probabilities,
+                                                 final BinaryMask mask,
+                                                 final boolean[] writtenTiles,
+                                                 final MemoryBudget budget) {
+        final ProgressReporter progressReporter = activity.getProgressReporter();
+        return new TilePipeline.TileWriter() {
             @Override
-            public void run() {
-                progress += progressIncrement;
-                activity.updateProgress((int) progress);
+            public boolean write(Tile tile) {
+                writtenTiles[tile.index] = true;
+                budget.sample();
+                // Region of the tile in the output image.
+                int left = probabilities.toMapX(tile.x);
+                int top = probabilities.toMapY(tile.y);
+                int right = probabilities.toMapX(tile.x + tile.width);
+                int bottom = probabilities.toMapY(tile.y + tile.height);
+                probabilities.accumulateTile(tile);
+                probabilities.threshold(mask, left, top, right, bottom,
+                        ProbabilityMap.DEFAULT_THRESHOLD);
+                stats.triggerFirstResult();
+                progressReporter.onTileCompleted(tile.index);
+
+                // Stop the search when Wally is found with enough confidence.
+                return !config.isStopAtFirstFindEnabled()
+                        || tile.confidentPixels < config.getDetectionArea();
             }
         };
+    }
 
-        List<Callable<Bitmap>> tasks = new ArrayList<>();
-        Bitmap subImage;
-        for (int j = 0; j < numSubImagesY; j++) {
-            for (int i = 0; i < numSubImagesX; i++) {
-                subImage = Bitmap.createBitmap(image,
-                        i * SUB_IMAGE_SIZE, j * SUB_IMAGE_SIZE,
-                        SUB_IMAGE_SIZE, SUB_IMAGE_SIZE);
-                tasks.add(new SubImageTask(interpreter, subImage, onTaskEnd));
+    /**
+     * Create the renderer that applies the mask of completed tiles to the
+     * output image on the main thread.
+     *
+     * @param grid The grid of tiles.
+     * @param source The preview of the image.
+     * @param image The output image, with the same size of the preview.
+     * @param probabilities The probabilities of the image.
+     * @param mask The mask to be applied.
+     * @return the renderer of tiles.
+     */
+    private ProgressReporter.TileRenderer createRenderer(final TileGrid grid,
+                                                         final Bitmap source,
+                                                         final Bitmap image,
+                                                         final ProbabilityMap probabilities,
+                                                         final BinaryMask mask) {
+        return new ProgressReporter.TileRenderer() {
+            private final int[] buffer = new int[tileSize * tileSize];
+
+            @Override
+            public void renderTile(int index, Rect region) {
+                // Tiles on the borders include padding, which lies outside
+                // the image.
+                int x = grid.getTileX(index);
+                int y = grid.getTileY(index);
+                region.set(probabilities.toMapX(x), probabilities.toMapY(y),
+                        probabilities.toMapX(x + tileSize), probabilities.toMapY(y + tileSize));
+                if (region.isEmpty()) {
+                    return;
+                }
+                // Convert to grayscale the pixels of the tile outside the
+                // mask. Overlapping regions are rendered again from the
+                // source when the neighbour tile is completed.
+                long start = System.nanoTime();
+                MaskApplier.applyMask(source, image, mask, region.left, region.top,
+                        region.right, region.bottom, buffer);
+                stats.addMaskApplicationTime(System.nanoTime() - start);
             }
+        };
+    }
+
+    /**
+     * Select the tiles to be searched at full resolution and start
+     * reporting their progress.
+     *
+     * @param pipeline The pipeline used to run the coarse pass.
+     * @param grid The grid of full-resolution tiles.
+     * @param renderer The renderer of the tiles into the output image.
+     * @return the row-major indexes of the selected tiles.
+     * @throws IOException if the image cannot be opened.
+     * @throws InterruptedException if the thread is interrupted.
+     * @throws ExecutionException if the model execution failed.
+     */
+    private int[] selectTasks(TilePipeline pipeline, TileGrid grid,
+                              ProgressReporter.TileRenderer renderer)
+            throws IOException, InterruptedException, ExecutionException
+    {
+        ProgressReporter progressReporter = activity.getProgressReporter();
+        if (config.isCoarseToFineEnabled()) {
+            int[] tasks = runCoarsePass(pipeline, grid);
+            // The selected tiles complete the remaining progress.
+            progressReporter.startPhase(tasks.length, grid, renderer);
+            return tasks;
+        }
+        progressReporter.start(grid.size(), grid, renderer);
+        int[] tasks = new int[grid.size()];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = i;
         }
         return tasks;
     }
 
     /**
-     * Compose masks from each task execution to generate the final
-     * mask with the same size of the given image.
+     * Search the selected tiles at full resolution.
      *
-     * @param image The input image.
-     * @param results The list of result from task execution.
-     * @param numSubImagesX The number of sub-images along the x-axis.
-     * @param numSubImagesY The number of sub-images along the y-axis.
-     * @return the final mask composed by all generated sub-masks.
-     * @throws ExecutionException if a task aborted throwing an exception.
-     * @throws InterruptedException if a task was interrupted.
-     */
-    private Bitmap composeSubMasks(Bitmap image, List<Future<Bitmap>> results,
-                                   int numSubImagesX, int numSubImagesY)
-            throws ExecutionException, InterruptedException
+     * <p>Each worker of the pool lazily creates its own interpreter. When
+     * the workers run out of memory, the search degrades instead of
+     * crashing: the interpreters are released and the remaining tiles
+     * are searched with half of the workers.</p>
+     *
+     * @param pipeline The pipeline used to run the model.
+     * @param session The session that keeps the interpreters.
+     * @param tileSource The source of tiles.
+     * @param grid The grid of tiles.
+     * @param tasks The row-major indexes of the tiles to be searched.
+     * @param writer The writer of tiles.
+     * @param writtenTiles Set for each tile of the grid that is written.
+     * @param budget The memory budget of the search.
+     * @throws IOException if the image cannot be opened.
+     * @throws InterruptedException if the thread is interrupted.
+     * @throws ExecutionException if the model execution failed.
+     */
+    private void runFinePass(TilePipeline pipeline, ModelSession session,
+                             TileSource tileSource, TileGrid grid, int[] tasks, TilePipeline.TileWriter writer,
+                             boolean[] writtenTiles, MemoryBudget budget)
+            throws IOException, InterruptedException, ExecutionException
     {
-        Bitmap mask = Bitmap.createBitmap(image.getWidth(), image.getHeight(), image.getConfig());
-        Canvas canvas = new Canvas(mask);
-        for (int j = 0; j < numSubImagesY; j++) {
-            for (int i = 0; i < numSubImagesX; i++) {
-                canvas.drawBitmap(
-                        results.get(i + j * numSubImagesX).get(),
-                        i * SUB_IMAGE_SIZE,
-                        j * SUB_IMAGE_SIZE,
-                        null
-                );
+        int numTasks = grid.size();
+        int[] remainingTasks = tasks;
+        int filteredTasks = 0, cachedTasks = 0;
+        long[] tileTimes = new long[numTasks];
+        while (true) {
+            try {
+                pipeline.run(tileSource, grid, remainingTasks, writer);
+                break;
+
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof OutOfMemoryError) || parallelTasksNumber == 1) {
+                    throw e;
+                }
+                e.printStackTrace();
+
+            } finally {
+                filteredTasks += pipeline.getFilteredTilesNumber();
+                cachedTasks += pipeline.getCachedTilesNumber();
+                // Tiles searched again after a fallback keep the time of
+                // their last inference.
+                AtomicLongArray times = pipeline.getTileTimes();
+                for (int i = 0; i < numTasks; i++) {
+                    if (times.get(i) > 0) {
+                        tileTimes[i] = times.get(i);
+                    }
+                }
+                budget.sample();
             }
+
+            // The threads of each interpreter are kept, since every thread
+            // needs its own scratch memory.
+            parallelTasksNumber /= 2;
+            InterpreterPool interpreterPool = session.getInterpreterPool(parallelTasksNumber,
+                    config.getBackend(), intraOpThreadsNumber, model.getFilename());
+            pipeline = createPipeline(interpreterPool, parallelTasksNumber,
+                    session.getTileCache());
+            remainingTasks = getUnwrittenTasks(tasks, writtenTiles);
+            stats.setParallelTasksNumber(parallelTasksNumber);
+            stats.setMemoryLimited(true);
+            stats.addMemoryFallback();
         }
-        return mask;
+        stats.setFilteredTasksNumber(filteredTasks);
+        stats.setCachedTasksNumber(cachedTasks);
+        stats.setTileTimes(tileTimes);
     }
 
     /**
-     * Apply provided mask to the given image converting to grayscale pixels
-     * that not corresponds to a white pixel in the mask.
+     * Render the tiles that have not been searched with an empty mask.
      *
-     * @param image The image to be filtered.
-     * @param mask The mask to be applied.
+     * @param tasks The row-major indexes of the selected tiles.
+     * @param writtenTiles Whether each tile of the grid has been written.
+     * @return <code>true</code> if some tiles have not been searched,
+     *         <code>false</code> otherwise.
      */
-    private void applyMask(Bitmap image, Bitmap mask) {
-        int rgb, r, g, b, gray;
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                // Convert to grayscale pixels that not corresponds
-                // to a white pixel in the mask.
-                if (mask.getPixel(x, y) != Color.WHITE) {
-                    rgb = image.getPixel(x, y);
-                    r = (rgb >> 16) & 0xff;
-                    g = (rgb >> 8) & 0xff;
-                    b = rgb & 0xff;
-                    gray = (r + g + b) / 3;
-                    image.setPixel(x, y, 0xff000000 | (gray << 16) | (gray << 8) | gray);
-                }
+    private boolean renderSkippedTiles(int[] tasks, boolean[] writtenTiles) {
+        int writtenTasks = tasks.length - getUnwrittenTasks(tasks, writtenTiles).length;
+        if (writtenTasks == writtenTiles.length) {
+            return false;
+        }
+        // The remaining tiles have an empty mask: render them in grayscale
+        // from the source.
+        stats.setSkippedTasksNumber(tasks.length - writtenTasks);
+        ProgressReporter progressReporter = activity.getProgressReporter();
+        for (int i = 0; i < writtenTiles.length; i++) {
+            if (!writtenTiles[i]) {
+                progressReporter.onTileSkipped(i);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Extract the detections, show the final result to the user and
+     * store it in the cache.
+     *
+     * @param cache The cache of results.
+     * @param cacheKey The key of the search.
+     * @param source The preview of the image.
+     * @param image The output image.
+     * @param probabilities The probabilities of the image.
+     * @param mask The thresholded mask.
+     * @param isPartial Whether some tiles have not been searched.
+     */
+    private void finishSearch(ResultCache cache, String cacheKey, Bitmap source, Bitmap image,
+                              ProbabilityMap probabilities, BinaryMask mask, boolean isPartial) {
+        // Extract the regions of the mask ranked by confidence.
+        long start = System.nanoTime();
+        List<Detection> detections = ConnectedComponents.extract(mask, probabilities);
+        stats.setDetections(detections, System.nanoTime() - start);
+        // Show final result to the user.
+        stats.setCacheHit(false, cache.getHitRate());
+        stats.triggerTotalExecutionEnd();
+        SearchResult result = new SearchResult(source, image, probabilities,
+                mask, ProbabilityMap.DEFAULT_THRESHOLD, detections);
+        activity.onModelExecutionEnd(result, stats);
+
+        // Only results of all tiles are stored, so that they can be reused
+        // by any later search: tiles pruned by the coarse pass or skipped
+        // after the first find are missing.
+        if (!isPartial) {
+            cache.store(cacheKey, result);
+        }
+    }
+
+    /**
+     * Show the error of a failed model execution.
+     *
+     * @param e The exception thrown by a worker.
+     */
+    private void showExecutionError(ExecutionException e) {
+        if (e.getCause() instanceof IllegalArgumentException
+                && (tileSize != model.getInputSize() || batchSize != 1)) {
+            showError("Sub-image size " + tileSize + " with batch size "
+                    + batchSize + " is not supported");
+        } else if (e.getCause() instanceof IllegalArgumentException) {
+            showError("Model file is badly encoded");
+        } else if (e.getCause() instanceof OutOfMemoryError) {
+            showError("Search aborted due to low memory");
+        } else if (e.getCause() instanceof IOException) {
+            showError("Image file cannot be decoded");
+        } else {
+            showError(e.getMessage());
+        }
+    }
+
+    /**
+     * Create the pipeline that decodes, runs and writes back tiles, in
+     * which the number of tiles in flight depends only on the number of
+     * workers.
+     *
+     * @param interpreterPool The pool of workers that run the model.
+     * @param parallelTasksNumber The number of workers.
+     * @param tileCache The cache of the outputs of tiles.
+     * @return the pipeline.
+     */
+    private TilePipeline createPipeline(InterpreterPool interpreterPool,
+                                        int parallelTasksNumber, TileCache tileCache) {
+        TilePipeline pipeline = new TilePipeline(interpreterPool,
+                parallelTasksNumber, tileSize, batchSize, config.getDetectionProbability());
+        // Uniform tiles, such as margins and padding, are not searched.
+        pipeline.setContentFilter(config.getMinContentVariance(), config.getMinContentFraction());
+        // Identical tiles already inferred in previous searches are reused.
+        pipeline.setTileCache(tileCache);
+        return pipeline;
+    }
+
+    /**
+     * Get the tasks whose tile has not been written back yet.
+     *
+     * @param tasks The row-major indexes of the tiles to be processed.
+     * @param writtenTiles Whether each tile of the grid has been written.
+     * @return the row-major indexes of the remaining tiles.
+     */
+    private static int[] getUnwrittenTasks(int[] tasks, boolean[] writtenTiles) {
+        int count = 0;
+        for (int index : tasks) {
+            if (!writtenTiles[index]) {
+                count++;
+            }
+        }
+        int[] remaining = new int[count];
+        for (int i = 0, k = 0; i < tasks.length; i++) {
+            if (!writtenTiles[tasks[i]]) {
+                remaining[k++] = tasks[i];
             }
         }
+        return remaining;
     }
 
     /**
-     * Restore the original size of the input image.
+     * Choose the size of sub-images.
      *
-     * @param image The image to be processed.
-     * @return the precessed image.
+     * <p>Larger sub-images need fewer invocations of the interpreter, so
+     * the overhead of each invocation is paid fewer times. The GPU delegate
+     * is prepared for the input shape of the model, so larger sizes are
+     * chosen automatically only on CPU, when the sub-images in flight fit
+     * in the available memory.</p>
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param parallelTasksNumber The number of parallel tasks.
+     * @return the height and width of sub-images.
      */
-    private Bitmap restoreInitialSize(Bitmap image) {
-        TensorImage tensorImage = TensorImage.fromBitmap(image);
+    private int chooseTileSize(int width, int height, int parallelTasksNumber) {
+        if (config.getTileSize() > 0) {
+            return config.getTileSize();
+        }
+        if (!config.getBackend().isInputResizable()) {
+            return model.getInputSize();
+        }
 
-        int width = activity.getInputImage().getWidth();
-        int height = activity.getInputImage().getHeight();
+        ActivityManager activityManager =
+                (ActivityManager) activity.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+
+        for (int factor : TILE_SIZE_FACTORS) {
+            int size = factor * model.getInputSize();
+            // Pixels and masks of the tiles in flight are on the heap,
+            // buffers and tensors of the interpreters in native memory.
+            long heapBytes = MemoryBudget.estimateWorkerHeapBytes(size, batchSize)
+                    * parallelTasksNumber;
+            long nativeBytes = MemoryBudget.estimateWorkerNativeBytes(size, batchSize)
+                    * parallelTasksNumber;
+            if (size <= Math.max(width, height)
+                    && heapBytes < freeHeap / 4
+                    && nativeBytes < memoryInfo.availMem / 4) {
+                return size;
+            }
+        }
+        return model.getInputSize();
+    }
+
+    /**
+     * Run the model on a downscaled version of the image to select the
+     * tiles that may contain Wally.
+     *
+     * <p>The coarse pass produces a heatmap with the number of pixels
+     * predicted as Wally in the area of each full-resolution tile: only
+     * tiles above the threshold are searched at full resolution.</p>
+     *
+     * @param pipeline The pipeline used to run the model.
+     * @param grid The grid of full-resolution tiles.
+     * @return the row-major indexes of the selected tiles.
+     * @throws IOException if the image cannot be opened.
+     * @throws InterruptedException if the thread is interrupted.
+     * @throws ExecutionException if the model execution failed.
+     */
+    private int[] runCoarsePass(TilePipeline pipeline, final TileGrid grid)
+            throws IOException, InterruptedException, ExecutionException
+    {
+        long start = SystemClock.elapsedRealtime();
+        TileSource coarseSource = TileSource.open(activity.getContentResolver(),
+                activity.getInputUri(), config.getCoarseSampleSize());
+        final int sampleSize = coarseSource.getSampleSize();
+        TileGrid coarseGrid = new TileGrid(coarseSource.getWidth(), coarseSource.getHeight(),
+                tileSize, 0);
+        int numTasks = grid.size();
+        stats.setCoarseTasksNumber(coarseGrid.size());
+        final ProgressReporter progressReporter = activity.getProgressReporter();
+        progressReporter.start(coarseGrid.size() + numTasks, null, null);
+
+        final int[] heatmap = new int[numTasks];
+        try {
+            pipeline.run(coarseSource, coarseGrid, new TilePipeline.TileWriter() {
+                @Override
+                public boolean write(Tile tile) {
+                    // Accumulate each pixel predicted as Wally in the
+                    // full-resolution tiles that contain it.
+                    for (int j = 0; j < tile.height; j++) {
+                        int offset = j * tile.size;
+                        int y = (tile.y + j) * sampleSize;
+                        for (int i = 0; i < tile.width; i++) {
+                            if ((tile.output[offset + i] & 0xff) < ProbabilityMap.DEFAULT_THRESHOLD) {
+                                continue;
+                            }
+                            int x = (tile.x + i) * sampleSize;
+                            for (int r = grid.getFirstRow(y); r <= grid.getLastRow(y); r++) {
+                                for (int c = grid.getFirstColumn(x); c <= grid.getLastColumn(x); c++) {
+                                    heatmap[r * grid.getNumTilesX() + c]++;
+                                }
+                            }
+                        }
+                    }
+                    progressReporter.onTileCompleted();
+                    return true;
+                }
+            });
+        } finally {
+            coarseSource.close();
+        }
 
-        ImageProcessor imageProcessor = new ImageProcessor.Builder()
-                .add(new ResizeWithCropOrPadOp(height, width))
-                .build();
-        tensorImage = imageProcessor.process(tensorImage);
-        return tensorImage.getBitmap();
+        int selectedTasksNumber = 0;
+        for (int value : heatmap) {
+            if (value >= config.getCoarseThreshold()) {
+                selectedTasksNumber++;
+            }
+        }
+        int[] tasks = new int[selectedTasksNumber];
+        for (int i = 0, k = 0; i < numTasks; i++) {
+            if (heatmap[i] >= config.getCoarseThreshold()) {
+                tasks[k++] = i;
+            }
+        }
+        stats.setPrunedTasksNumber(numTasks - selectedTasksNumber);
+        stats.setCoarseExecutionTime(SystemClock.elapsedRealtime() - start);
+        return tasks;
     }
 }
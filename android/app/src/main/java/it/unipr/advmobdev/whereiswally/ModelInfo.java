@@ -0,0 +1,114 @@
+package it.unipr.advmobdev.whereiswally;
+
+import java.util.Locale;
+
+/**
+ * Metadata of a model read from its file.
+ *
+ * <p>Every model takes square RGB sub-images and predicts, for each
+ * pixel, the probability that it belongs to Wally, so models only differ
+ * in the size of sub-images they have been trained on, in the data types
+ * of their tensors and in their cost.</p>
+ */
+class ModelInfo {
+    /**
+     * The model filename in assets folder.
+     */
+    private final String filename;
+
+    /**
+     * The size of the model file in bytes.
+     */
+    private final long fileSize;
+
+    /**
+     * Height and width of the sub-images taken by the model.
+     */
+    private final int inputSize;
+
+    /**
+     * The data type of the input tensor.
+     */
+    private final String inputType;
+
+    /**
+     * The data type of the output tensor.
+     */
+    private final String outputType;
+
+    /**
+     * Initialize the metadata.
+     *
+     * @param filename The model filename in assets folder.
+     * @param fileSize The size of the model file in bytes.
+     * @param inputSize The height and width of the sub-images.
+     * @param inputType The data type of the input tensor.
+     * @param outputType The data type of the output tensor.
+     */
+    ModelInfo(String filename, long fileSize, int inputSize, String inputType, String outputType) {
+        this.filename = filename;
+        this.fileSize = fileSize;
+        this.inputSize = inputSize;
+        this.inputType = inputType;
+        this.outputType = outputType;
+    }
+
+    /**
+     * Get the model filename.
+     *
+     * @return the filename in assets folder.
+     */
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Get the size of the model file.
+     *
+     * @return the size in bytes.
+     */
+    long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Get the size of the sub-images taken by the model.
+     *
+     * @return the height and width of sub-images.
+     */
+    int getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Get the data type of the input tensor.
+     *
+     * @return the name of the data type.
+     */
+    String getInputType() {
+        return inputType;
+    }
+
+    /**
+     * Get the data type of the output tensor.
+     *
+     * @return the name of the data type.
+     */
+    String getOutputType() {
+        return outputType;
+    }
+
+    /**
+     * Get the name of the model, i.e. its filename without extension.
+     *
+     * @return the name of the model.
+     */
+    String getName() {
+        return filename.substring(0, filename.length() - ModelRegistry.MODEL_EXTENSION.length());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "%s (%.1f MB)", getName(), fileSize / 1048576f);
+    }
+}
@@ -0,0 +1,236 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+import org.tensorflow.lite.support.common.FileUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Registry of the models shipped with the app.
+ *
+ * <p>Every TensorFlow Lite file in assets folder is a model that can be
+ * chosen for a search, e.g. a small model for quick scans and the
+ * accurate U-Net. The metadata of a model is read from its tensors the
+ * first time it is found and stored in the preferences, so that the model
+ * is loaded again only when its file changes.</p>
+ */
+class ModelRegistry {
+    private static final String TAG = "ModelRegistry";
+
+    /**
+     * Extension of model files.
+     */
+    static final String MODEL_EXTENSION = ".tflite";
+
+    /**
+     * Filename of the default model in assets folder.
+     */
+    static final String DEFAULT_MODEL_FILENAME = "unet_v2.f1lo-b14-e60-lr0.001.44.tflite";
+
+    /**
+     * Name of the preferences in which metadata is stored.
+     */
+    private static final String PREFERENCES_NAME = "models";
+
+    /**
+     * Separator of the fields of stored metadata.
+     */
+    private static final String SEPARATOR = ";";
+
+    /**
+     * The unique instance of the registry.
+     */
+    private static ModelRegistry instance;
+
+    /**
+     * The application context.
+     */
+    private final Context context;
+
+    /**
+     * The preferences in which metadata is stored.
+     */
+    private final SharedPreferences preferences;
+
+    /**
+     * The available models, or <code>null</code> if not read yet.
+     */
+    private List<ModelInfo> models;
+
+    /**
+     * Get the unique instance of the registry.
+     *
+     * @param context The context.
+     * @return the model registry.
+     */
+    static synchronized ModelRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new ModelRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Initialize the registry.
+     *
+     * @param context The application context.
+     */
+    private ModelRegistry(Context context) {
+        this.context = context;
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Get the available models.
+     *
+     * <p>The default model is the first one, the others follow in
+     * alphabetical order. Files that cannot be opened or whose tensors are
+     * not supported are ignored.</p>
+     *
+     * @return the list of models.
+     */
+    synchronized List<ModelInfo> getModels() {
+        if (models != null) {
+            return models;
+        }
+        List<String> filenames = new ArrayList<>();
+        try {
+            for (String filename : context.getAssets().list("")) {
+                if (filename.endsWith(MODEL_EXTENSION)) {
+                    filenames.add(filename);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to list the models", e);
+        }
+        Collections.sort(filenames);
+        if (filenames.remove(DEFAULT_MODEL_FILENAME)) {
+            filenames.add(0, DEFAULT_MODEL_FILENAME);
+        }
+
+        List<ModelInfo> list = new ArrayList<>();
+        for (String filename : filenames) {
+            try {
+                list.add(readModelInfo(filename));
+
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Model " + filename + " is not supported", e);
+            }
+        }
+        models = Collections.unmodifiableList(list);
+        return models;
+    }
+
+    /**
+     * Get the metadata of a model.
+     *
+     * @param filename The model filename in assets folder.
+     * @return the metadata, or <code>null</code> if the model is not available.
+     */
+    ModelInfo getModel(String filename) {
+        for (ModelInfo model : getModels()) {
+            if (model.getFilename().equals(filename)) {
+                return model;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the metadata of the model with the given name shown to the user.
+     *
+     * @param label The name shown to the user.
+     * @return the metadata, or <code>null</code> if no model has this name.
+     */
+    ModelInfo getModelByLabel(String label) {
+        for (ModelInfo model : getModels()) {
+            if (model.toString().equals(label)) {
+                return model;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the metadata of a model, from the preferences if the file has
+     * not changed, otherwise from its tensors.
+     *
+     * @param filename The model filename in assets folder.
+     * @return the metadata.
+     * @throws IOException if model file cannot be opened.
+     * @throws IllegalArgumentException if model file is badly encoded or
+     *                                  its tensors are not supported.
+     */
+    private ModelInfo readModelInfo(String filename) throws IOException, IllegalArgumentException {
+        long fileSize;
+        AssetFileDescriptor descriptor = context.getAssets().openFd(filename);
+        try {
+            fileSize = descriptor.getLength();
+        } finally {
+            descriptor.close();
+        }
+
+        String stored = preferences.getString(filename, null);
+        if (stored != null) {
+            String[] fields = stored.split(SEPARATOR);
+            if (fields.length == 4 && Long.parseLong(fields[0]) == fileSize) {
+                return new ModelInfo(filename, fileSize,
+                        Integer.parseInt(fields[1]), fields[2], fields[3]);
+            }
+        }
+
+        ModelInfo model = inspect(filename, fileSize);
+        preferences.edit().putString(filename, fileSize + SEPARATOR + model.getInputSize()
+                + SEPARATOR + model.getInputType() + SEPARATOR + model.getOutputType()).apply();
+        return model;
+    }
+
+    /**
+     * Read the metadata of a model from its tensors.
+     *
+     * <p>The input must be a batch of square RGB sub-images and the output
+     * a single-channel map of probabilities of the same size.</p>
+     *
+     * @param filename The model filename in assets folder.
+     * @param fileSize The size of the model file in bytes.
+     * @return the metadata.
+     * @throws IOException if model file cannot be opened.
+     * @throws IllegalArgumentException if model file is badly encoded or
+     *                                  its tensors are not supported.
+     */
+    private ModelInfo inspect(String filename, long fileSize)
+            throws IOException, IllegalArgumentException
+    {
+        Interpreter interpreter = new Interpreter(FileUtil.loadMappedFile(context, filename));
+        try {
+            Tensor input = interpreter.getInputTensor(0);
+            Tensor output = interpreter.getOutputTensor(0);
+            int[] inputShape = input.shape();
+            int[] outputShape = output.shape();
+            if (inputShape.length != 4 || inputShape[1] != inputShape[2] || inputShape[3] != 3) {
+                throw new IllegalArgumentException("Unsupported input shape");
+            }
+            if (outputShape.length != 4 || outputShape[1] != inputShape[1]
+                    || outputShape[2] != inputShape[2] || outputShape[3] != 1) {
+                throw new IllegalArgumentException("Unsupported output shape");
+            }
+            // Only float and 8-bit quantized tensors can be fed.
+            TensorFormat.of(input);
+            TensorFormat.of(output);
+            return new ModelInfo(filename, fileSize, inputShape[1],
+                    input.dataType().toString(), output.dataType().toString());
+
+        } finally {
+            interpreter.close();
+        }
+    }
+}
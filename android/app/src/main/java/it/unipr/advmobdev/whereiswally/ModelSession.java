@@ -0,0 +1,239 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.tensorflow.lite.support.common.FileUtil;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Process-wide session that keeps the model loaded between searches.
+ *
+ * <p>Mapping the model file and creating interpreters and GPU delegates
+ * is expensive, so the session keeps them warm and hands the same
+ * interpreter pool to every search that uses the same configuration.
+ * Resources are released only when the system asks to trim memory.</p>
+ */
+class ModelSession {
+    private static final String TAG = "ModelSession";
+
+    /**
+     * Default backend, used when preloading the model.
+     */
+    private static final InferenceBackend DEFAULT_BACKEND = InferenceBackend.GPU;
+    /**
+     * Default batch size, used when preloading the model.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 1;
+
+    /**
+     * The unique instance of the session.
+     */
+    private static ModelSession instance;
+
+    /**
+     * The application context.
+     */
+    private final Context context;
+
+    /**
+     * The memory-mapped model file.
+     */
+    private MappedByteBuffer model;
+    /**
+     * The filename of the loaded model.
+     */
+    private String modelFilename;
+
+    /**
+     * The pool of interpreters used by the last search.
+     */
+    private InterpreterPool interpreterPool;
+    /**
+     * The number of workers of the current pool.
+     */
+    private int parallelTasksNumber;
+    /**
+     * The backend of the current pool.
+     */
+    private InferenceBackend backend;
+    /**
+     * The number of threads of each interpreter of the current pool.
+     */
+    private int intraOpThreadsNumber;
+
+    /**
+     * The cache of the outputs of tiles.
+     */
+    private TileCache tileCache;
+
+    /**
+     * Get the unique instance of the session.
+     *
+     * @param context The context.
+     * @return the model session.
+     */
+    static synchronized ModelSession getInstance(Context context) {
+        if (instance == null) {
+            instance = new ModelSession(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Initialize the session.
+     *
+     * @param context The application context.
+     */
+    private ModelSession(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Read the available models, then load the default one and create
+     * the interpreters in background using the default configuration of
+     * the search dialog, so that the first search starts warm.
+     *
+     * <p>The default configuration tunes the number of parallel tasks
+     * automatically, so the pool is created with the number stored by the
+     * last calibration, or with a single task, which is the first number
+     * tried by the calibration, if the device has not been tuned yet.</p>
+     *
+     * <p>This method is called once, when the application is created.</p>
+     */
+    void preload() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ModelInfo model = ModelRegistry.getInstance(context)
+                            .getModel(ModelRegistry.DEFAULT_MODEL_FILENAME);
+                    if (model == null) {
+                        Log.w(TAG, "Default model not available");
+                        return;
+                    }
+                    // The backend does not resize inputs, so sub-images
+                    // have the input size of the model.
+                    ParallelismTuner tuner = new ParallelismTuner(context, ModelSession.this,
+                            DEFAULT_BACKEND, InferenceBackend.AUTO_INTRA_OP_THREADS_NUMBER,
+                            model.getFilename(), model.getInputSize(), DEFAULT_BATCH_SIZE);
+                    int parallelTasksNumber = Math.min(
+                            Math.max(1, tuner.getTunedParallelTasksNumber()),
+                            tuner.getMaxParallelTasksNumber());
+                    getInterpreterPool(parallelTasksNumber, DEFAULT_BACKEND,
+                            DEFAULT_BACKEND.getIntraOpThreadsNumber(parallelTasksNumber,
+                                    InferenceBackend.AUTO_INTRA_OP_THREADS_NUMBER),
+                            model.getFilename()).warmUp();
+
+                } catch (IOException | IllegalArgumentException e) {
+                    // The error will be shown to the user on the next search.
+                    Log.w(TAG, "Unable to preload the model", e);
+
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Model preloading interrupted", e);
+
+                } catch (RejectedExecutionException e) {
+                    // The pool has been replaced by a search or released
+                    // while warming up.
+                    Log.w(TAG, "Model preloading superseded", e);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Check whether an interpreter pool for the given configuration is
+     * already available.
+     *
+     * @param parallelTasksNumber The number of parallel tasks.
+     * @param backend The backend on which interpreters run the model.
+     * @param intraOpThreadsNumber The number of threads of each interpreter.
+     * @param modelFilename The model filename in assets folder.
+     * @return <code>true</code> if the pool is warm, <code>false</code> otherwise.
+     */
+    synchronized boolean isWarm(int parallelTasksNumber, InferenceBackend backend,
+                                int intraOpThreadsNumber, String modelFilename) {
+        return interpreterPool != null
+                && this.parallelTasksNumber == parallelTasksNumber
+                && this.backend == backend
+                && this.intraOpThreadsNumber == intraOpThreadsNumber
+                && modelFilename.equals(this.modelFilename);
+    }
+
+    /**
+     * Get the cache of the outputs of tiles, shared by all searches.
+     *
+     * @return the tile cache.
+     */
+    synchronized TileCache getTileCache() {
+        if (tileCache == null) {
+            tileCache = new TileCache(TileCache.DEFAULT_MAX_BYTES);
+        }
+        return tileCache;
+    }
+
+    /**
+     * Get the interpreter pool for the given configuration.
+     *
+     * <p>The pool is reused if the configuration is the same of the
+     * previous search, otherwise the previous pool is closed and a new
+     * one is created.</p>
+     *
+     * @param parallelTasksNumber The number of parallel tasks.
+     * @param backend The backend on which interpreters run the model.
+     * @param intraOpThreadsNumber The number of threads of each interpreter.
+     * @param modelFilename The model filename in assets folder.
+     * @return the interpreter pool.
+     * @throws IOException if model file not exists or cannot be opened.
+     */
+    synchronized InterpreterPool getInterpreterPool(int parallelTasksNumber,
+                                                    InferenceBackend backend,
+                                                    int intraOpThreadsNumber,
+                                                    String modelFilename)
+            throws IOException
+    {
+        if (isWarm(parallelTasksNumber, backend, intraOpThreadsNumber, modelFilename)) {
+            return interpreterPool;
+        }
+        if (interpreterPool != null) {
+            interpreterPool.close();
+            interpreterPool = null;
+        }
+        if (model == null || !modelFilename.equals(this.modelFilename)) {
+            model = FileUtil.loadMappedFile(context, modelFilename);
+            this.modelFilename = modelFilename;
+            // Outputs of tiles depend on the model.
+            if (tileCache != null) {
+                tileCache.clear();
+            }
+        }
+        interpreterPool = new InterpreterPool(model,
+                parallelTasksNumber, backend, intraOpThreadsNumber);
+        this.parallelTasksNumber = parallelTasksNumber;
+        this.backend = backend;
+        this.intraOpThreadsNumber = intraOpThreadsNumber;
+        return interpreterPool;
+    }
+
+    /**
+     * Release interpreters, delegates, the model file and the cached
+     * outputs of tiles.
+     *
+     * <p>Tasks already submitted to the pool are completed before the
+     * interpreters are closed. The session is loaded again on next use.</p>
+     */
+    synchronized void release() {
+        if (interpreterPool != null) {
+            interpreterPool.close();
+            interpreterPool = null;
+        }
+        if (tileCache != null) {
+            tileCache.clear();
+        }
+        model = null;
+        modelFilename = null;
+    }
+}
@@ -0,0 +1,242 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tuner that chooses the number of parallel tasks for the device.
+ *
+ * <p>The best number of parallel tasks depends on the number of cores,
+ * on the memory and on the backend, so it is measured: the first tiles of
+ * the image are run with an increasing number of workers, as long as the
+ * workers fit in a memory budget derived from the memory class of the
+ * device and the throughput improves. Unless fixed, the threads of each
+ * interpreter get an even share of the cores, so the calibration also
+ * chooses how cores are split between workers and intra-op threads. The
+ * chosen number is stored for each backend, model and size of sub-images,
+ * so that later searches start directly with it.</p>
+ */
+class ParallelismTuner {
+    private static final String TAG = "ParallelismTuner";
+
+    /**
+     * Name of the preferences in which tuned values are stored.
+     */
+    private static final String PREFERENCES_NAME = "parallelism";
+
+    /**
+     * Maximum number of parallel tasks tried by the calibration.
+     */
+    static final int MAX_PARALLEL_TASKS_NUMBER = 4;
+
+    /**
+     * Number of batches of tiles run by each worker during the
+     * calibration of a number of parallel tasks.
+     */
+    private static final int CALIBRATION_BATCHES_PER_WORKER = 2;
+
+    /**
+     * Fraction of the memory class of the device that the workers can use.
+     */
+    private static final float MEMORY_BUDGET_FRACTION = 0.5f;
+
+    /**
+     * The model session that provides the interpreters.
+     */
+    private final ModelSession session;
+
+    /**
+     * The preferences in which tuned values are stored.
+     */
+    private final SharedPreferences preferences;
+
+    /**
+     * Memory available to the workers in bytes.
+     */
+    private final long memoryBudget;
+
+    /**
+     * The backend on which interpreters run the model.
+     */
+    private final InferenceBackend backend;
+
+    /**
+     * The requested number of threads of each interpreter.
+     */
+    private final int intraOpThreadsNumber;
+
+    /**
+     * The model filename in assets folder.
+     */
+    private final String modelFilename;
+
+    /**
+     * Height and width of sub-images.
+     */
+    private final int tileSize;
+
+    /**
+     * The number of sub-images run in a single invocation of the model.
+     */
+    private final int batchSize;
+
+    /**
+     * Initialize the tuner for a configuration.
+     *
+     * @param context The context.
+     * @param session The model session that provides the interpreters.
+     * @param backend The backend on which interpreters run the model.
+     * @param intraOpThreadsNumber The requested number of threads of each
+     *                             interpreter, or zero to split the cores
+     *                             between the parallel tasks.
+     * @param modelFilename The model filename in assets folder.
+     * @param tileSize The height and width of sub-images.
+     * @param batchSize The number of sub-images run in a single invocation.
+     */
+    ParallelismTuner(Context context, ModelSession session, InferenceBackend backend,
+                     int intraOpThreadsNumber, String modelFilename,
+                     int tileSize, int batchSize) {
+        this.session = session;
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        this.memoryBudget = (long) (activityManager.getMemoryClass() * 1024L * 1024L
+                * MEMORY_BUDGET_FRACTION);
+        this.backend = backend;
+        this.intraOpThreadsNumber = intraOpThreadsNumber;
+        this.modelFilename = modelFilename;
+        this.tileSize = tileSize;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get the number of parallel tasks chosen by a previous calibration.
+     *
+     * @return the number of parallel tasks, or zero if not tuned yet.
+     */
+    int getTunedParallelTasksNumber() {
+        return preferences.getInt(getPreferenceKey(), 0);
+    }
+
+    /**
+     * Get the maximum number of parallel tasks that fit in the memory
+     * budget.
+     *
+     * @return the number of parallel tasks, at least one.
+     */
+    int getMaxParallelTasksNumber() {
+        // Tiles in flight on the heap, buffers and tensors in native memory.
+        long workerBytes = MemoryBudget.estimateWorkerHeapBytes(tileSize, batchSize)
+                + MemoryBudget.estimateWorkerNativeBytes(tileSize, batchSize);
+        int max = (int) Math.min(MAX_PARALLEL_TASKS_NUMBER, memoryBudget / workerBytes);
+        return Math.max(1, max);
+    }
+
+    /**
+     * Measure the throughput of an increasing number of parallel tasks on
+     * the first tiles of the image and store the best one.
+     *
+     * <p>The best number is not stored if it is limited only by the memory
+     * free during this search, so that a search under memory pressure does
+     * not pin the tuned value for the device.</p>
+     *
+     * @param tileSource The source of tiles.
+     * @param grid The grid of tiles.
+     * @param detectionProbability The probability above which a pixel is
+     *                             a confident detection.
+     * @param maxParallelTasksNumber The maximum number of parallel tasks
+     *                               admitted by the memory budget of the
+     *                               search.
+     * @return the best number of parallel tasks.
+     * @throws IOException if the model file cannot be opened.
+     * @throws InterruptedException if the thread is interrupted.
+     * @throws RejectedExecutionException if the session is released during
+     *                                    the calibration, in which case
+     *                                    nothing is stored.
+     */
+    int calibrate(TileSource tileSource, TileGrid grid, float detectionProbability,
+                  int maxParallelTasksNumber)
+            throws IOException, InterruptedException, RejectedExecutionException
+    {
+        TilePipeline.TileWriter writer = new TilePipeline.TileWriter() {
+            @Override
+            public boolean write(Tile tile) {
+                return true;
+            }
+        };
+
+        int best = 1;
+        float bestThroughput = 0;
+        int max = Math.min(getMaxParallelTasksNumber(), maxParallelTasksNumber);
+        // Whether the memory free now stopped the calibration.
+        boolean isMemoryLimited = max < getMaxParallelTasksNumber();
+        for (int n = 1; n <= max; n++) {
+            int[] tiles = new int[Math.min(grid.size(),
+                    n * batchSize * CALIBRATION_BATCHES_PER_WORKER)];
+            for (int i = 0; i < tiles.length; i++) {
+                tiles[i] = i;
+            }
+
+            InterpreterPool interpreterPool =
+                    session.getInterpreterPool(n, backend,
+                            backend.getIntraOpThreadsNumber(n, intraOpThreadsNumber),
+                            modelFilename);
+            // The tile cache is not used, so that each number of parallel
+            // tasks runs the model on the same tiles.
+            TilePipeline pipeline = new TilePipeline(interpreterPool, n, tileSize, batchSize,
+                    detectionProbability);
+            float throughput;
+            try {
+                // Interpreters are created before measuring.
+                interpreterPool.warmUp();
+                long start = SystemClock.elapsedRealtime();
+                pipeline.run(tileSource, grid, tiles, writer);
+                long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+                throughput = tiles.length * 1000f / elapsed;
+
+            } catch (ExecutionException | IllegalArgumentException e) {
+                // This number of parallel tasks is not supported.
+                Log.w(TAG, "Calibration failed with " + n + " parallel tasks", e);
+                isMemoryLimited = e.getCause() instanceof OutOfMemoryError;
+                break;
+            }
+            Log.d(TAG, n + " parallel tasks: " + throughput + " tiles/s");
+            if (throughput <= bestThroughput) {
+                // More tasks only compete for the same cores.
+                isMemoryLimited = false;
+                break;
+            }
+            best = n;
+            bestThroughput = throughput;
+        }
+
+        if (isMemoryLimited) {
+            Log.d(TAG, "Calibration limited by free memory, " + best
+                    + " parallel tasks not stored");
+        } else {
+            preferences.edit().putInt(getPreferenceKey(), best).apply();
+        }
+        return best;
+    }
+
+    /**
+     * Get the key under which the tuned value of the configuration is
+     * stored.
+     *
+     * @return the preference key.
+     */
+    private String getPreferenceKey() {
+        return backend.name().toLowerCase(Locale.ROOT)
+                + "_" + intraOpThreadsNumber
+                + "_" + modelFilename
+                + "_" + tileSize + "_" + batchSize;
+    }
+}
@@ -0,0 +1,308 @@
+package it.unipr.advmobdev.whereiswally;
+
+/**
+ * Map of the probability of each pixel of the image to belong to Wally,
+ * quantized to one byte per pixel.
+ *
+ * <p>The map can be subsampled with respect to the image searched by the
+ * model, so that its memory does not grow with the resolution of the
+ * photo: each pixel of the map covers a block of pixels of the image and
+ * takes the highest probability of the block, so that small detections
+ * are not lost.</p>
+ *
+ * <p>The map is composed by accumulating the output of each tile. Where
+ * tiles overlap, the probabilities are blended with weights that decrease
+ * linearly towards the border of each tile, so that seams between tiles
+ * are smoothed. The blend is normalized by the weights of the tiles
+ * accumulated so far, so a pixel keeps its full probability when the
+ * neighbour tile is not inferred, because it was pruned, filtered out or
+ * skipped after the first find, and it is rounded once per tile instead
+ * of summing the rounding errors of each weighted term.</p>
+ */
+class ProbabilityMap {
+    /**
+     * Default quantized probability at or above which a pixel belongs to
+     * Wally, corresponding to 0.5.
+     */
+    static final int DEFAULT_THRESHOLD = 128;
+
+    /**
+     * The width of the map.
+     */
+    private final int width;
+    /**
+     * The height of the map.
+     */
+    private final int height;
+
+    /**
+     * The quantized probabilities in row-major order.
+     */
+    private final byte[] values;
+
+    /**
+     * The grid of the tiles accumulated in the map, or <code>null</code>
+     * if the map is not composed from tiles.
+     */
+    private final TileGrid grid;
+
+    /**
+     * The height and width of the block of pixels of the image covered by
+     * each pixel of the map.
+     */
+    private final int sampleSize;
+
+    /**
+     * Whether each tile of the grid has been accumulated, or
+     * <code>null</code> if the map is not composed from tiles.
+     */
+    private final boolean[] accumulatedTiles;
+
+    /**
+     * Create a map with all probabilities set to zero.
+     *
+     * @param width The width of the map.
+     * @param height The height of the map.
+     */
+    ProbabilityMap(int width, int height) {
+        this(width, height, null, 1);
+    }
+
+    /**
+     * Create a map with all probabilities set to zero, to be composed from
+     * the tiles of a grid.
+     *
+     * <p>The pixel <code>(x, y)</code> of the map covers the block of
+     * pixels of the image that starts at
+     * <code>(x * sampleSize, y * sampleSize)</code>.</p>
+     *
+     * @param width The width of the map.
+     * @param height The height of the map.
+     * @param grid The grid of the tiles to be accumulated.
+     * @param sampleSize The subsampling factor of the map with respect to
+     *                   the image covered by the grid.
+     */
+    ProbabilityMap(int width, int height, TileGrid grid, int sampleSize) {
+        this.width = width;
+        this.height = height;
+        this.values = new byte[width * height];
+        this.grid = grid;
+        this.sampleSize = sampleSize;
+        this.accumulatedTiles = grid == null ? null : new boolean[grid.size()];
+    }
+
+    /**
+     * Get the width of the map.
+     *
+     * @return the width in pixels.
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the height of the map.
+     *
+     * @return the height in pixels.
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the first column of the map whose block starts at or after a
+     * column of the image.
+     *
+     * @param x The x coordinate in the image.
+     * @return the x coordinate in the map, at most the width of the map.
+     */
+    int toMapX(int x) {
+        return Math.min(width, (x + sampleSize - 1) / sampleSize);
+    }
+
+    /**
+     * Get the first row of the map whose block starts at or after a row of
+     * the image.
+     *
+     * @param y The y coordinate in the image.
+     * @return the y coordinate in the map, at most the height of the map.
+     */
+    int toMapY(int y) {
+        return Math.min(height, (y + sampleSize - 1) / sampleSize);
+    }
+
+    /**
+     * Get the quantized probabilities of all pixels.
+     *
+     * @return the backing array of the map in row-major order.
+     */
+    byte[] getValues() {
+        return values;
+    }
+
+    /**
+     * Get the quantized probability of a pixel.
+     *
+     * @param x The x coordinate of the pixel.
+     * @param y The y coordinate of the pixel.
+     * @return the probability, between 0 and 255.
+     */
+    int get(int x, int y) {
+        return values[y * width + x] & 0xff;
+    }
+
+    /**
+     * Accumulate the output of a tile at its position.
+     *
+     * <p>Tiles on the borders are partially outside the image, so only the
+     * area inside the image is written. Each pixel of the map is written
+     * by the tiles that contain the first pixel of its block. Tiles skipped
+     * by the content filter have no output and are ignored.</p>
+     *
+     * <p>This method can be called only on maps created with a grid.</p>
+     *
+     * @param tile The tile whose output contains the probabilities.
+     */
+    void accumulateTile(Tile tile) {
+        if (tile.isFiltered) {
+            return;
+        }
+        int overlap = grid.getOverlap();
+        if (overlap == 0 && sampleSize == 1) {
+            // Each pixel belongs to a single tile.
+            for (int j = 0; j < tile.height; j++) {
+                System.arraycopy(tile.output, j * tile.size,
+                        values, (tile.y + j) * width + tile.x, tile.width);
+            }
+            accumulatedTiles[tile.index] = true;
+            return;
+        }
+
+        // Sides of the tile shared with a neighbour, where the weight
+        // ramps from zero to one.
+        int column = tile.index % grid.getNumTilesX();
+        int row = tile.index / grid.getNumTilesX();
+        boolean left = column > 0;
+        boolean top = row > 0;
+        boolean right = column < grid.getNumTilesX() - 1;
+        boolean bottom = row < grid.getNumTilesY() - 1;
+        int mapLeft = toMapX(tile.x);
+        int mapRight = toMapX(tile.x + tile.width);
+        for (int y = toMapY(tile.y); y < toMapY(tile.y + tile.height); y++) {
+            // Position of the block inside the tile.
+            int j = y * sampleSize - tile.y;
+            int blockHeight = Math.min(sampleSize, tile.height - j);
+            float weightY = weight(j, tile.size, overlap, top, bottom);
+            // The row of tiles that shares this block, if any.
+            int neighbourRow = top && j < overlap ? row - 1
+                    : bottom && j >= tile.size - overlap ? row + 1 : -1;
+            int index = y * width + mapLeft;
+            for (int x = mapLeft; x < mapRight; x++, index++) {
+                int i = x * sampleSize - tile.x;
+                int probability = getMaxProbability(tile, i, j,
+                        Math.min(sampleSize, tile.width - i), blockHeight);
+                int neighbourColumn = left && i < overlap ? column - 1
+                        : right && i >= tile.size - overlap ? column + 1 : -1;
+                if (neighbourRow < 0 && neighbourColumn < 0) {
+                    values[index] = (byte) probability;
+                    continue;
+                }
+
+                // The weights of overlapping tiles sum up to one along
+                // each axis, so the weight of each neighbour follows from
+                // the weight of this tile.
+                float weightX = weight(i, tile.size, overlap, left, right);
+                float weight = weightX * weightY;
+                float accumulatedWeight = 0;
+                if (neighbourColumn >= 0 && isAccumulated(row, neighbourColumn)) {
+                    accumulatedWeight += (1 - weightX) * weightY;
+                }
+                if (neighbourRow >= 0 && isAccumulated(neighbourRow, column)) {
+                    accumulatedWeight += weightX * (1 - weightY);
+                }
+                if (neighbourRow >= 0 && neighbourColumn >= 0
+                        && isAccumulated(neighbourRow, neighbourColumn)) {
+                    accumulatedWeight += (1 - weightX) * (1 - weightY);
+                }
+                values[index] = (byte) Math.round(
+                        ((values[index] & 0xff) * accumulatedWeight + probability * weight)
+                                / (accumulatedWeight + weight));
+            }
+        }
+        accumulatedTiles[tile.index] = true;
+    }
+
+    /**
+     * Get the highest probability of a block of pixels of a tile.
+     *
+     * @param tile The tile.
+     * @param i The x coordinate of the block inside the tile.
+     * @param j The y coordinate of the block inside the tile.
+     * @param blockWidth The width of the block.
+     * @param blockHeight The height of the block.
+     * @return the quantized probability, between 0 and 255.
+     */
+    private static int getMaxProbability(Tile tile, int i, int j, int blockWidth, int blockHeight) {
+        int max = 0;
+        for (int v = 0; v < blockHeight; v++) {
+            int offset = (j + v) * tile.size + i;
+            for (int u = 0; u < blockWidth; u++) {
+                max = Math.max(max, tile.output[offset + u] & 0xff);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Check whether a tile of the grid has been accumulated.
+     *
+     * @param row The row of the tile.
+     * @param column The column of the tile.
+     * @return <code>true</code> if the tile has been accumulated,
+     *         <code>false</code> otherwise.
+     */
+    private boolean isAccumulated(int row, int column) {
+        return accumulatedTiles[row * grid.getNumTilesX() + column];
+    }
+
+    /**
+     * Compute the blending weight along one axis of a tile.
+     *
+     * @param position The position inside the tile.
+     * @param size The size of the tile.
+     * @param overlap The number of pixels shared by adjacent tiles.
+     * @param hasPrevious Whether the tile overlaps the previous one.
+     * @param hasNext Whether the tile overlaps the next one.
+     * @return the weight, between 0 and 1.
+     */
+    private static float weight(int position, int size, int overlap,
+                                boolean hasPrevious, boolean hasNext) {
+        if (hasPrevious && position < overlap) {
+            return (position + 0.5f) / overlap;
+        }
+        if (hasNext && position >= size - overlap) {
+            return (size - position - 0.5f) / overlap;
+        }
+        return 1f;
+    }
+
+    /**
+     * Threshold a region of the map into a binary mask.
+     *
+     * @param mask The mask to be written.
+     * @param left The left side of the region.
+     * @param top The top side of the region.
+     * @param right The right side of the region, exclusive.
+     * @param bottom The bottom side of the region, exclusive.
+     * @param threshold The quantized probability at or above which a
+     *                  pixel belongs to Wally.
+     */
+    void threshold(BinaryMask mask, int left, int top, int right, int bottom, int threshold) {
+        for (int y = top; y < bottom; y++) {
+            int index = y * width + left;
+            for (int x = left; x < right; x++, index++) {
+                mask.set(x, y, (values[index] & 0xff) >= threshold);
+            }
+        }
+    }
+}
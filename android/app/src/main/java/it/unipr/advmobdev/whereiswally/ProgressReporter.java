@@ -0,0 +1,343 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.graphics.Rect;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reporter of the progress of a search to the user interface.
+ *
+ * <p>Completed tiles are counted by an atomic counter and marked in an
+ * array of flags indexed by tile, so that any thread can report them
+ * without blocking or allocating. The user interface is updated at most
+ * once per frame: the first tile completed after a frame schedules a
+ * frame callback, which shows the progress, renders the tiles completed
+ * meanwhile into the output image and redraws their union.</p>
+ *
+ * <p>The output image is displayed while the search runs, so it is
+ * written only on the main thread, between two draws of the view, and a
+ * frame never shows a partially written tile. Tiles that do not fit in
+ * the time budget of a frame are rendered in the next one.</p>
+ */
+class ProgressReporter implements Choreographer.FrameCallback {
+    /**
+     * Listener notified on the main thread.
+     */
+    interface Listener {
+        /**
+         * Show the progress of the search.
+         *
+         * @param progress The progress between 0 and 100, or a negative
+         *                 value if the progress is indeterminate.
+         */
+        void onProgressChanged(int progress);
+
+        /**
+         * Redraw a region of the output image.
+         *
+         * @param region The region updated by completed tiles, valid only
+         *               during the call.
+         */
+        void onRegionCompleted(Rect region);
+    }
+
+    /**
+     * Renderer of completed tiles into the output image, called on the
+     * main thread.
+     */
+    interface TileRenderer {
+        /**
+         * Render a tile into the output image.
+         *
+         * @param index The row-major index of the tile in the grid.
+         * @param region Set to the region of the output image written by
+         *               the tile, or empty if none.
+         */
+        void renderTile(int index, Rect region);
+    }
+
+    /**
+     * A phase of the search, published as a whole to the main thread.
+     */
+    private static class Phase {
+        /**
+         * The progress at the beginning of the phase.
+         */
+        final float startProgress;
+
+        /**
+         * The number of tiles of the phase.
+         */
+        final int tilesNumber;
+
+        /**
+         * The number of tiles completed in the phase.
+         */
+        final AtomicInteger completedTiles = new AtomicInteger();
+
+
+        /**
+         * Non-zero for the tiles completed since the last frame, or
+         * <code>null</code> if the phase does not update the output image.
+         */
+        final AtomicIntegerArray completedRegions;
+
+        /**
+         * The renderer of the tiles into the output image, or
+         * <code>null</code> if the phase does not update it.
+         */
+        final TileRenderer renderer;
+
+        /**
+         * Initialize the phase.
+         *
+         * @param startProgress The progress at the beginning of the phase.
+         * @param tilesNumber The number of tiles of the phase.
+         * @param grid The grid of the tiles that update the output image,
+         *             or <code>null</code> if none.
+         * @param renderer The renderer of the tiles into the output image,
+         *                 or <code>null</code> if none.
+         */
+        Phase(float startProgress, int tilesNumber, TileGrid grid, TileRenderer renderer) {
+            this.startProgress = startProgress;
+            this.tilesNumber = tilesNumber;
+            this.renderer = renderer;
+            this.completedRegions = grid == null ? null : new AtomicIntegerArray(grid.size());
+        }
+
+        /**
+         * Get the current progress.
+         *
+         * @return the progress between 0 and 100.
+         */
+        float getProgress() {
+            if (tilesNumber == 0) {
+                return startProgress;
+            }
+            float fraction = Math.min(1f, (float) completedTiles.get() / tilesNumber);
+            return startProgress + (100f - startProgress) * fraction;
+        }
+    }
+
+    /**
+     * Value of the progress when it is indeterminate.
+     */
+    static final int INDETERMINATE = -1;
+
+    /**
+     * Maximum time in nanoseconds spent rendering tiles in a frame.
+     */
+    private static final long FRAME_RENDER_BUDGET_NS = 8_000_000;
+
+    /**
+     * The choreographer of the main thread.
+     */
+    private final Choreographer choreographer;
+
+    /**
+     * The listener notified on the main thread.
+     */
+    private final Listener listener;
+
+    /**
+     * The current phase of the search.
+     */
+    private final AtomicReference<Phase> phase =
+            new AtomicReference<>(new Phase(0, 0, null, null));
+
+    /**
+     * Whether the progress is indeterminate.
+     */
+    private volatile boolean isIndeterminate = false;
+
+    /**
+     * Whether a frame callback is already scheduled.
+     */
+    private final AtomicBoolean isFrameScheduled = new AtomicBoolean(false);
+
+    /**
+     * The region redrawn in a frame, reused by the main thread.
+     */
+    private final Rect dirtyRegion = new Rect();
+
+    /**
+     * The region rendered by a tile, reused by the main thread.
+     */
+    private final Rect tileRegion = new Rect();
+
+    /**
+     * The progress shown in the last frame, used only on the main thread.
+     */
+    private int shownProgress = Integer.MIN_VALUE;
+
+    /**
+     * Initialize the reporter.
+     *
+     * <p>This constructor must be called on the main thread.</p>
+     *
+     * @param listener The listener notified on the main thread.
+     */
+    ProgressReporter(Listener listener) {
+        this.choreographer = Choreographer.getInstance();
+        this.listener = listener;
+    }
+
+    /**
+     * Start a new search with the given number of tiles.
+     *
+     * @param tilesNumber The number of tiles to be completed.
+     * @param grid The grid of the tiles that update the output image, or
+     *             <code>null</code> if the first phase does not update it.
+     * @param renderer The renderer of the tiles into the output image, or
+     *                 <code>null</code> if the first phase does not update it.
+     */
+    void start(int tilesNumber, TileGrid grid, TileRenderer renderer) {
+        isIndeterminate = false;
+        phase.set(new Phase(0, tilesNumber, grid, renderer));
+        scheduleFrame();
+    }
+
+    /**
+     * Start a new phase of the search, whose tiles complete the remaining
+     * progress.
+     *
+     * @param tilesNumber The number of tiles of the phase.
+     * @param grid The grid of the tiles that update the output image, or
+     *             <code>null</code> if the phase does not update it.
+     * @param renderer The renderer of the tiles into the output image, or
+     *                 <code>null</code> if the phase does not update it.
+     */
+    void startPhase(int tilesNumber, TileGrid grid, TileRenderer renderer) {
+        phase.set(new Phase(phase.get().getProgress(), tilesNumber, grid, renderer));
+        scheduleFrame();
+    }
+
+    /**
+     * Report a completed tile that does not update the output image.
+     *
+     * <p>This method can be called by any thread.</p>
+     */
+    void onTileCompleted() {
+        phase.get().completedTiles.incrementAndGet();
+        scheduleFrame();
+    }
+
+    /**
+     * Report a completed tile that updates the output image.
+     *
+     * <p>This method can be called by any thread, after the mask of the
+     * tile has been computed. The tile is rendered into the output image
+     * on the main thread.</p>
+     *
+     * @param index The row-major index of the tile in the grid of the
+     *              current phase.
+     */
+    void onTileCompleted(int index) {
+        Phase current = phase.get();
+        current.completedRegions.set(index, 1);
+        current.completedTiles.incrementAndGet();
+        scheduleFrame();
+    }
+
+    /**
+     * Report a tile that has not been searched, which is rendered into
+     * the output image with an empty mask without changing the progress.
+     *
+     * <p>This method can be called by any thread.</p>
+     *
+     * @param index The row-major index of the tile in the grid of the
+     *              current phase.
+     */
+    void onTileSkipped(int index) {
+        phase.get().completedRegions.set(index, 1);
+        scheduleFrame();
+    }
+
+    /**
+     * Render all the tiles reported so far into the output image.
+     *
+     * <p>This method must be called on the main thread, before the output
+     * image is shown as the final result.</p>
+     */
+    void flush() {
+        renderTiles(phase.get(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Set whether the progress is indeterminate, e.g. while the result is
+     * finalized.
+     *
+     * @param isIndeterminate Whether the progress is indeterminate.
+     */
+    void setIndeterminate(boolean isIndeterminate) {
+        this.isIndeterminate = isIndeterminate;
+        scheduleFrame();
+    }
+
+    /**
+     * Schedule a frame callback, unless one is already scheduled.
+     */
+    private void scheduleFrame() {
+        if (isFrameScheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Tiles completed from now on schedule the next frame.
+        isFrameScheduled.set(false);
+        Phase current = phase.get();
+        if (!renderTiles(current, FRAME_RENDER_BUDGET_NS)) {
+            // Render the remaining tiles in the next frame.
+            scheduleFrame();
+        }
+
+        int progress = isIndeterminate ? INDETERMINATE : (int) current.getProgress();
+        if (progress != shownProgress) {
+            shownProgress = progress;
+            listener.onProgressChanged(progress);
+        }
+    }
+
+    /**
+     * Render the tiles reported since the last frame and redraw their
+     * union.
+     *
+     * @param current The current phase.
+     * @param budgetNanos The maximum time in nanoseconds spent rendering.
+     * @return <code>true</code> if all the tiles have been rendered,
+     *         <code>false</code> if some are left for the next frame.
+     */
+    private boolean renderTiles(Phase current, long budgetNanos) {
+        if (current.completedRegions == null) {
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean isDone = true;
+        dirtyRegion.setEmpty();
+        for (int i = 0; i < current.completedRegions.length(); i++) {
+            if (current.completedRegions.get(i) == 0) {
+                continue;
+            }
+            if (System.nanoTime() - start > budgetNanos) {
+                isDone = false;
+                break;
+            }
+            // The mask may still change where a neighbour overlaps the
+            // tile: the neighbour renders the shared region again when it
+            // is completed.
+            current.completedRegions.set(i, 0);
+            current.renderer.renderTile(i, tileRegion);
+            dirtyRegion.union(tileRegion);
+        }
+        if (!dirtyRegion.isEmpty()) {
+            listener.onRegionCompleted(dirtyRegion);
+        }
+        return isDone;
+    }
+}
@@ -0,0 +1,349 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Persistent cache of search results, so that searching again the same
+ * image does not run the model.
+ *
+ * <p>Results are stored in the cache directory of the app, one file for
+ * each result, named after a hash of the decoded pixels of the image and
+ * of the parameters that affect the output of the model. The quantized
+ * probabilities are mostly zero, so they are stored compressed; the mask
+ * is derived again from them when a result is loaded. When the cache
+ * exceeds its maximum size, the least recently used results are deleted.</p>
+ */
+class ResultCache {
+    private static final String TAG = "ResultCache";
+
+    /**
+     * Name of the directory of the cache.
+     */
+    private static final String DIRECTORY_NAME = "results";
+
+    /**
+     * Name of the preferences in which hits and misses are counted.
+     */
+    private static final String PREFERENCES_NAME = "result_cache";
+    /**
+     * Preference key of the number of hits.
+     */
+    private static final String KEY_HITS = "hits";
+    /**
+     * Preference key of the number of misses.
+     */
+    private static final String KEY_MISSES = "misses";
+
+    /**
+     * Version of the file format, changed when the format is not
+     * compatible anymore.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Maximum size of the cache in bytes.
+     */
+    private static final long MAX_SIZE_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * The unique instance of the cache.
+     */
+    private static ResultCache instance;
+
+    /**
+     * The directory of the cache.
+     */
+    private final File directory;
+
+    /**
+     * The preferences in which hits and misses are counted.
+     */
+    private final SharedPreferences preferences;
+
+    /**
+     * Get the unique instance of the cache.
+     *
+     * @param context The context.
+     * @return the result cache.
+     */
+    static synchronized ResultCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ResultCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Initialize the cache.
+     *
+     * @param context The application context.
+     */
+    private ResultCache(Context context) {
+        this.directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Compute the key of the result of a search.
+     *
+     * <p>The key depends on the decoded pixels, so the same image opened
+     * from different files has the same key, and on the parameters that
+     * change the probabilities predicted by the model. The model is
+     * identified also by the size of its file, so that a model replaced
+     * under the same name does not hit the results of the old one.</p>
+     *
+     * <p>Only results of searches of all tiles are stored, so the
+     * parameters of the coarse pass are not part of the key: a
+     * coarse-to-fine search reuses the result of a complete one.</p>
+     *
+     * @param image The input image.
+     * @param config The configuration of the search.
+     * @param model The metadata of the model of the search.
+     * @param tileSize The height and width of sub-images chosen for the
+     *                 search, which may differ from the requested one.
+     * @return the key as an hexadecimal string.
+     */
+    static String computeKey(Bitmap image, SearchConfig config, ModelInfo model, int tileSize) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(width * 4);
+        for (int y = 0; y < height; y++) {
+            image.getPixels(row, 0, width, 0, y, width, 1);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array());
+        }
+
+        String parameters = config.getModelFilename()
+                + "|" + model.getFileSize()
+                + "|" + width + "x" + height
+                + "|" + tileSize
+                + "|" + config.getBackend().name()
+                + "|" + config.getOverlap()
+                + "|" + config.getMinContentVariance()
+                + "|" + config.getMinContentFraction();
+        digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Load a result from the cache, counting the hit or miss.
+     *
+     * @param key The key of the result.
+     * @param source The input image.
+     * @param executor The executor used to render the output image.
+     * @param parallelism The number of rendering tasks run in parallel.
+     * @return the result, or <code>null</code> if not in the cache.
+     * @throws InterruptedException if interrupted while rendering.
+     */
+    SearchResult load(String key, Bitmap source, Executor executor, int parallelism)
+            throws InterruptedException
+    {
+        File file = new File(directory, key);
+        SearchResult result = null;
+        if (file.exists()) {
+            try {
+                result = read(file, source, executor, parallelism);
+                // Mark the result as recently used.
+                file.setLastModified(System.currentTimeMillis());
+
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read cached result", e);
+                file.delete();
+            }
+        }
+        countLookup(result != null);
+        return result;
+    }
+
+    /**
+     * Store a result in the cache, evicting the least recently used
+     * results if the cache is full.
+     *
+     * @param key The key of the result.
+     * @param result The result of the search.
+     */
+    void store(String key, SearchResult result) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create cache directory");
+            return;
+        }
+        // Write to a temporary file first, so that an interrupted write
+        // does not leave a corrupted result.
+        File temporary = new File(directory, key + ".tmp");
+        try {
+            write(temporary, result);
+            if (!temporary.renameTo(new File(directory, key))) {
+                throw new IOException("Unable to rename " + temporary);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write cached result", e);
+            temporary.delete();
+            return;
+        }
+        evict();
+    }
+
+    /**
+     * Get the fraction of lookups that found a result in the cache.
+     *
+     * @return the hit rate, between 0 and 1.
+     */
+    synchronized float getHitRate() {
+        long hits = preferences.getLong(KEY_HITS, 0);
+        long misses = preferences.getLong(KEY_MISSES, 0);
+        return hits + misses == 0 ? 0f : (float) hits / (hits + misses);
+    }
+
+    /**
+     * Count a lookup in the cache.
+     *
+     * @param isHit Whether the result was found.
+     */
+    private synchronized void countLookup(boolean isHit) {
+        String key = isHit ? KEY_HITS : KEY_MISSES;
+        preferences.edit().putLong(key, preferences.getLong(key, 0) + 1).apply();
+    }
+
+    /**
+     * Write a result to a file.
+     *
+     * @param file The file.
+     * @param result The result of the search.
+     * @throws IOException if the file cannot be written.
+     */
+    private static void write(File file, SearchResult result) throws IOException {
+        ProbabilityMap probabilities = result.getProbabilities();
+        List<Detection> detections = result.getDetections();
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file))));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(probabilities.getWidth());
+            out.writeInt(probabilities.getHeight());
+            out.writeInt(result.getThreshold());
+            out.writeInt(detections.size());
+            for (Detection detection : detections) {
+                Rect bounds = detection.getBounds();
+                out.writeInt(bounds.left);
+                out.writeInt(bounds.top);
+                out.writeInt(bounds.right);
+                out.writeInt(bounds.bottom);
+                out.writeInt(detection.getArea());
+                out.writeFloat(detection.getMeanProbability());
+            }
+            out.write(probabilities.getValues());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a result from a file and render its output image.
+     *
+     * @param file The file.
+     * @param source The input image.
+     * @param executor The executor used to render the output image.
+     * @param parallelism The number of rendering tasks run in parallel.
+     * @return the result.
+     * @throws IOException if the file cannot be read or is not valid.
+     * @throws InterruptedException if interrupted while rendering.
+     */
+    private static SearchResult read(File file, Bitmap source, Executor executor,
+                                     int parallelism)
+            throws IOException, InterruptedException
+    {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new BufferedInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported format version");
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            if (width != source.getWidth() || height != source.getHeight()) {
+                throw new IOException("Size does not match the image");
+            }
+            int threshold = in.readInt();
+            int detectionsNumber = in.readInt();
+            List<Detection> detections = new ArrayList<>(detectionsNumber);
+            for (int i = 0; i < detectionsNumber; i++) {
+                Rect bounds = new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                detections.add(new Detection(bounds, in.readInt(), in.readFloat()));
+            }
+            ProbabilityMap probabilities = new ProbabilityMap(width, height);
+            in.readFully(probabilities.getValues());
+
+            Bitmap image = source.copy(Bitmap.Config.ARGB_8888, true);
+            BinaryMask mask = new BinaryMask(width, height);
+            MaskApplier.applyThreshold(source, image, probabilities, threshold,
+                    mask, executor, parallelism);
+            return new SearchResult(source, image, probabilities, mask, threshold, detections);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete the least recently used results until the cache fits its
+     * maximum size.
+     */
+    private synchronized void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && size > MAX_SIZE_BYTES; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+}
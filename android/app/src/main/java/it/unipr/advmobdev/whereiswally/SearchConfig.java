@@ -0,0 +1,399 @@
+package it.unipr.advmobdev.whereiswally;
+
+/**
+ * Configuration of a Wally search.
+ */
+class SearchConfig {
+    /**
+     * Number of parallel tasks that tells to tune it on the device.
+     */
+    static final int AUTO_PARALLEL_TASKS_NUMBER = 0;
+    /**
+     * Default probability above which a pixel is a confident detection.
+     */
+    static final float DEFAULT_DETECTION_PROBABILITY = 0.9f;
+    /**
+     * Default number of confident pixels that a tile must contain to be
+     * considered a detection of Wally.
+     */
+    static final int DEFAULT_DETECTION_AREA = 400;
+    /**
+     * Default subsampling factor of the coarse pass.
+     */
+    static final int DEFAULT_COARSE_SAMPLE_SIZE = 2;
+    /**
+     * Default number of pixels predicted as Wally in the coarse pass
+     * above which a tile is searched at full resolution.
+     */
+    static final int DEFAULT_COARSE_THRESHOLD = 4;
+    /**
+     * Default minimum variance of the luminance of a tile to be searched.
+     */
+    static final float DEFAULT_MIN_CONTENT_VARIANCE = 16f;
+    /**
+     * Default minimum fraction of a tile inside the image to be searched.
+     */
+    static final float DEFAULT_MIN_CONTENT_FRACTION = 0.01f;
+
+    /**
+     * The number of parallel tasks, or zero to tune it automatically.
+     */
+    private int parallelTasksNumber = AUTO_PARALLEL_TASKS_NUMBER;
+
+    /**
+     * The backend on which the model is run.
+     */
+    private InferenceBackend backend = InferenceBackend.GPU;
+
+    /**
+     * The number of threads of each interpreter, or zero to split the
+     * cores of the device between the parallel tasks.
+     */
+    private int intraOpThreadsNumber = InferenceBackend.AUTO_INTRA_OP_THREADS_NUMBER;
+
+    /**
+     * The filename of the model in assets folder.
+     */
+    private String modelFilename = ModelRegistry.DEFAULT_MODEL_FILENAME;
+
+    /**
+     * The height and width of sub-images, or zero to choose it
+     * automatically.
+     */
+    private int tileSize = 0;
+
+    /**
+     * The number of sub-images run in a single invocation of the model.
+     */
+    private int batchSize = 1;
+
+    /**
+     * The number of pixels shared by adjacent sub-images.
+     */
+    private int overlap = 0;
+
+    /**
+     * Whether the search stops at the first detection of Wally.
+     */
+    private boolean isStopAtFirstFindEnabled = false;
+    /**
+     * The probability above which a pixel is a confident detection.
+     */
+    private float detectionProbability = DEFAULT_DETECTION_PROBABILITY;
+    /**
+     * The number of confident pixels that a tile must contain to stop
+     * the search.
+     */
+    private int detectionArea = DEFAULT_DETECTION_AREA;
+
+    /**
+     * Whether a coarse pass on the downscaled image selects the tiles to
+     * be searched at full resolution.
+     */
+    private boolean isCoarseToFineEnabled = false;
+    /**
+     * The subsampling factor of the coarse pass, a power of 2.
+     */
+    private int coarseSampleSize = DEFAULT_COARSE_SAMPLE_SIZE;
+    /**
+     * The number of pixels predicted as Wally in the coarse pass above
+     * which a tile is searched at full resolution.
+     */
+    private int coarseThreshold = DEFAULT_COARSE_THRESHOLD;
+
+    /**
+     * The minimum variance of the luminance of a tile to be searched,
+     * or zero to search also uniform tiles.
+     */
+    private float minContentVariance = DEFAULT_MIN_CONTENT_VARIANCE;
+    /**
+     * The minimum fraction of a tile inside the image to be searched,
+     * checked only if uniform tiles are skipped.
+     */
+    private final float minContentFraction = DEFAULT_MIN_CONTENT_FRACTION;
+
+    /**
+     * Get the number of parallel tasks.
+     *
+     * @return the number of parallel tasks, or
+     *         {@link #AUTO_PARALLEL_TASKS_NUMBER} to tune it automatically.
+     */
+    int getParallelTasksNumber() {
+        return parallelTasksNumber;
+    }
+
+    /**
+     * Set the number of parallel tasks.
+     *
+     * @param parallelTasksNumber The number of parallel tasks, or
+     *                            {@link #AUTO_PARALLEL_TASKS_NUMBER} to
+     *                            tune it automatically.
+     */
+    void setParallelTasksNumber(int parallelTasksNumber) {
+        this.parallelTasksNumber = parallelTasksNumber;
+    }
+
+    /**
+     * Get the backend on which the model is run.
+     *
+     * @return the inference backend.
+     */
+    InferenceBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Set the backend on which the model is run.
+     *
+     * @param backend The inference backend.
+     */
+    void setBackend(InferenceBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Get the number of threads of each interpreter.
+     *
+     * @return the number of intra-op threads, or zero if chosen
+     *         automatically.
+     */
+    int getIntraOpThreadsNumber() {
+        return intraOpThreadsNumber;
+    }
+
+    /**
+     * Set the number of threads of each interpreter.
+     *
+     * <p>The number is used only on CPU backends.</p>
+     *
+     * @param intraOpThreadsNumber The number of intra-op threads, or zero
+     *                             to choose it automatically.
+     */
+    void setIntraOpThreadsNumber(int intraOpThreadsNumber) {
+        this.intraOpThreadsNumber = intraOpThreadsNumber;
+    }
+
+    /**
+     * Get the model used by the search.
+     *
+     * @return the model filename in assets folder.
+     */
+    String getModelFilename() {
+        return modelFilename;
+    }
+
+    /**
+     * Set the model used by the search.
+     *
+     * @param modelFilename The model filename in assets folder.
+     */
+    void setModelFilename(String modelFilename) {
+        this.modelFilename = modelFilename;
+    }
+
+    /**
+     * Get the height and width of sub-images.
+     *
+     * @return the size in pixels, or zero if chosen automatically.
+     */
+    int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Set the height and width of sub-images.
+     *
+     * @param tileSize The size in pixels, or zero to choose it automatically.
+     */
+    void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Get the number of sub-images run in a single invocation of the model.
+     *
+     * @return the batch size.
+     */
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the number of sub-images run in a single invocation of the model.
+     *
+     * <p>Batches are used only on CPU, since the GPU delegate supports
+     * only a single sub-image.</p>
+     *
+     * @param batchSize The batch size.
+     */
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Get the number of pixels shared by adjacent sub-images.
+     *
+     * @return the overlap in pixels.
+     */
+    int getOverlap() {
+        return overlap;
+    }
+
+    /**
+     * Set the number of pixels shared by adjacent sub-images.
+     *
+     * <p>The probabilities of overlapping regions are blended, which
+     * removes the seams between sub-images at the cost of more sub-images.
+     * The overlap is limited to half of the sub-image size.</p>
+     *
+     * @param overlap The overlap in pixels, zero for adjacent sub-images.
+     */
+    void setOverlap(int overlap) {
+        this.overlap = overlap;
+    }
+
+    /**
+     * Check whether the search stops at the first detection of Wally.
+     *
+     * @return <code>true</code> if the search stops at the first detection,
+     *         <code>false</code> if all tiles are processed.
+     */
+    boolean isStopAtFirstFindEnabled() {
+        return isStopAtFirstFindEnabled;
+    }
+
+    /**
+     * Set whether the search stops at the first detection of Wally.
+     *
+     * @param isStopAtFirstFindEnabled Whether the search stops at the first detection.
+     */
+    void setStopAtFirstFindEnabled(boolean isStopAtFirstFindEnabled) {
+        this.isStopAtFirstFindEnabled = isStopAtFirstFindEnabled;
+    }
+
+    /**
+     * Get the probability above which a pixel is a confident detection.
+     *
+     * @return the probability, between 0 and 1.
+     */
+    float getDetectionProbability() {
+        return detectionProbability;
+    }
+
+    /**
+     * Set the probability above which a pixel is a confident detection.
+     *
+     * @param detectionProbability The probability, between 0 and 1.
+     */
+    void setDetectionProbability(float detectionProbability) {
+        this.detectionProbability = detectionProbability;
+    }
+
+    /**
+     * Get the number of confident pixels that a tile must contain to
+     * stop the search.
+     *
+     * @return the area in pixels.
+     */
+    int getDetectionArea() {
+        return detectionArea;
+    }
+
+    /**
+     * Set the number of confident pixels that a tile must contain to
+     * stop the search.
+     *
+     * @param detectionArea The area in pixels.
+     */
+    void setDetectionArea(int detectionArea) {
+        this.detectionArea = detectionArea;
+    }
+
+    /**
+     * Check whether a coarse pass selects the tiles to be searched at
+     * full resolution.
+     *
+     * @return <code>true</code> if the coarse-to-fine search is enabled,
+     *         <code>false</code> if all tiles are searched.
+     */
+    boolean isCoarseToFineEnabled() {
+        return isCoarseToFineEnabled;
+    }
+
+    /**
+     * Set whether a coarse pass selects the tiles to be searched at full
+     * resolution.
+     *
+     * @param isCoarseToFineEnabled Whether the coarse-to-fine search is enabled.
+     */
+    void setCoarseToFineEnabled(boolean isCoarseToFineEnabled) {
+        this.isCoarseToFineEnabled = isCoarseToFineEnabled;
+    }
+
+    /**
+     * Get the subsampling factor of the coarse pass.
+     *
+     * @return the subsampling factor, a power of 2.
+     */
+    int getCoarseSampleSize() {
+        return coarseSampleSize;
+    }
+
+    /**
+     * Set the subsampling factor of the coarse pass.
+     *
+     * @param coarseSampleSize The subsampling factor, a power of 2.
+     */
+    void setCoarseSampleSize(int coarseSampleSize) {
+        this.coarseSampleSize = coarseSampleSize;
+    }
+
+    /**
+     * Get the number of pixels predicted as Wally in the coarse pass
+     * above which a tile is searched at full resolution.
+     *
+     * @return the number of pixels of the downscaled image.
+     */
+    int getCoarseThreshold() {
+        return coarseThreshold;
+    }
+
+    /**
+     * Set the number of pixels predicted as Wally in the coarse pass
+     * above which a tile is searched at full resolution.
+     *
+     * @param coarseThreshold The number of pixels of the downscaled image.
+     */
+    void setCoarseThreshold(int coarseThreshold) {
+        this.coarseThreshold = coarseThreshold;
+    }
+
+    /**
+     * Get the minimum variance of the luminance of a tile to be searched.
+     *
+     * @return the variance, or zero if also uniform tiles are searched.
+     */
+    float getMinContentVariance() {
+        return minContentVariance;
+    }
+
+    /**
+     * Set the minimum variance of the luminance of a tile to be searched.
+     *
+     * @param minContentVariance The variance, or zero to search also
+     *                           uniform tiles.
+     */
+    void setMinContentVariance(float minContentVariance) {
+        this.minContentVariance = minContentVariance;
+    }
+
+    /**
+     * Get the minimum fraction of a tile inside the image to be searched,
+     * checked only if uniform tiles are skipped.
+     *
+     * @return the fraction, between 0 and 1.
+     */
+    float getMinContentFraction() {
+        return minContentFraction;
+    }
+}
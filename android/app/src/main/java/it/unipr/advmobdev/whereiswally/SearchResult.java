@@ -0,0 +1,130 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.graphics.Bitmap;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Result of a Wally search.
+ *
+ * <p>The result keeps the probability map predicted by the model, so the
+ * mask and the output image can be derived again with a different
+ * threshold without running the model.</p>
+ */
+class SearchResult {
+    /**
+     * The input image.
+     */
+    private final Bitmap sourceImage;
+
+    /**
+     * The output image, in which pixels outside the mask are gray.
+     */
+    private final Bitmap outputImage;
+
+    /**
+     * The probabilities predicted by the model.
+     */
+    private final ProbabilityMap probabilities;
+
+    /**
+     * The mask derived from the probabilities with the current threshold.
+     */
+    private final BinaryMask mask;
+
+    /**
+     * The current quantized threshold, between 1 and 255.
+     */
+    private int threshold;
+
+    /**
+     * The detections in the mask, ranked by decreasing score.
+     */
+    private List<Detection> detections;
+
+    /**
+     * Initialize the result.
+     *
+     * @param sourceImage The input image.
+     * @param outputImage The output image rendered with the given mask.
+     * @param probabilities The probabilities predicted by the model.
+     * @param mask The mask derived with the given threshold.
+     * @param threshold The quantized threshold of the mask.
+     * @param detections The detections in the mask.
+     */
+    SearchResult(Bitmap sourceImage, Bitmap outputImage, ProbabilityMap probabilities,
+                 BinaryMask mask, int threshold, List<Detection> detections) {
+        this.sourceImage = sourceImage;
+        this.outputImage = outputImage;
+        this.probabilities = probabilities;
+        this.mask = mask;
+        this.threshold = threshold;
+        this.detections = detections;
+    }
+
+    /**
+     * Get the output image.
+     *
+     * @return the output image.
+     */
+    Bitmap getOutputImage() {
+        return outputImage;
+    }
+
+    /**
+     * Get the probabilities predicted by the model.
+     *
+     * @return the probability map.
+     */
+    ProbabilityMap getProbabilities() {
+        return probabilities;
+    }
+
+    /**
+     * Get the mask derived with the current threshold.
+     *
+     * @return the mask.
+     */
+    BinaryMask getMask() {
+        return mask;
+    }
+
+    /**
+     * Get the current threshold.
+     *
+     * @return the quantized threshold, between 1 and 255.
+     */
+    synchronized int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Get the detections in the mask with the current threshold.
+     *
+     * @return the detections, ranked by decreasing score.
+     */
+    synchronized List<Detection> getDetections() {
+        return detections;
+    }
+
+    /**
+     * Change the threshold, updating the mask, the output image and the
+     * detections in place.
+     *
+     * @param threshold The quantized threshold, between 1 and 255.
+     * @param executor The executor that processes stripes of the image.
+     * @param parallelism The number of stripe tasks run in parallel.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    synchronized void setThreshold(int threshold, Executor executor, int parallelism)
+            throws InterruptedException
+    {
+        if (threshold != this.threshold) {
+            MaskApplier.applyThreshold(sourceImage, outputImage, probabilities, threshold,
+                    mask, executor, parallelism);
+            this.threshold = threshold;
+            this.detections = ConnectedComponents.extract(mask, probabilities);
+        }
+    }
+}
@@ -4,7 +4,9 @@ import android.util.Size;
 
 import androidx.annotation.NonNull;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -21,9 +23,44 @@ class Statistics {
     private Size paddedSize = new Size(0, 0);
 
     /**
-     * Whether the GPU acceleration is enabled.
+     * The height and width of sub-images.
      */
-    private boolean isGpuAccelerationEnabled = false;
+    private int tileSize = 0;
+
+    /**
+     * The number of sub-images run in a single invocation of the model.
+     */
+    private int batchSize = 1;
+
+    /**
+     * The number of pixels shared by adjacent sub-images.
+     */
+    private int overlap = 0;
+
+    /**
+     * The backend on which the model was run.
+     */
+    private InferenceBackend backend = InferenceBackend.CPU;
+
+    /**
+     * The number of threads of each interpreter.
+     */
+    private int intraOpThreadsNumber = 1;
+
+    /**
+     * The name of the model.
+     */
+    private String modelName = "";
+
+    /**
+     * The data type of the input of the model.
+     */
+    private String modelInputType = "";
+
+    /**
+     * Whether the model was already loaded when the execution started.
+     */
+    private boolean isWarmSession = false;
 
     /**
      * The start of main execution in milliseconds
@@ -36,6 +73,11 @@ class Statistics {
      */
     private long totalExecutionEnd = 0;
 
+    /**
+     * The duration of the coarse pass in milliseconds.
+     */
+    private long coarseExecutionTime = 0;
+
     /**
      * The start of tasks execution in milliseconds
      * since January 1, 1970, 00:00:00 GMT.
@@ -47,16 +89,114 @@ class Statistics {
      */
     private long tasksExecutionEnd = 0;
 
+    /**
+     * The time when the first result was shown in milliseconds
+     * since January 1, 1970, 00:00:00 GMT.
+     */
+    private long firstResult = 0;
+
+    /**
+     * The total time spent applying the mask in nanoseconds.
+     */
+    private long maskApplicationTime = 0;
+
+    /**
+     * The median inference time of a sub-image in nanoseconds.
+     */
+    private long medianTileTime = 0;
+    /**
+     * The maximum inference time of a sub-image in nanoseconds.
+     */
+    private long maxTileTime = 0;
+
     /**
      * The number of sub-images/tasks.
      */
     private int tasksNumber = 0;
 
+    /**
+     * The number of sub-images/tasks skipped after the first detection.
+     */
+    private int skippedTasksNumber = 0;
+
+    /**
+     * The number of sub-images/tasks skipped because they have no content.
+     */
+    private int filteredTasksNumber = 0;
+
+    /**
+     * The number of sub-images/tasks whose output was found in the tile
+     * cache.
+     */
+    private int cachedTasksNumber = 0;
+
+    /**
+     * The number of sub-images/tasks of the coarse pass.
+     */
+    private int coarseTasksNumber = 0;
+
+    /**
+     * The number of sub-images/tasks pruned by the coarse pass.
+     */
+    private int prunedTasksNumber = 0;
+
+    /**
+     * The number of detections found in the mask.
+     */
+    private int detectionsNumber = 0;
+
+    /**
+     * The mean probability of the top ranked detection.
+     */
+    private float topDetectionProbability = 0f;
+
+    /**
+     * Time spent extracting detections from the mask, in nanoseconds.
+     */
+    private long detectionTime = 0;
+
+    /**
+     * Whether the result has been loaded from the cache.
+     */
+    private boolean isCacheHit = false;
+
+    /**
+     * The fraction of searches whose result was in the cache.
+     */
+    private float cacheHitRate = 0f;
+
     /**
      * The maximum number of parallel tasks.
      */
     private int parallelTasksNumber = 0;
 
+    /**
+     * Whether the number of parallel tasks has been reduced to fit in
+     * memory.
+     */
+    private boolean isMemoryLimited = false;
+
+    /**
+     * The number of times the workers have been halved after running out
+     * of memory.
+     */
+    private int memoryFallbacksNumber = 0;
+
+    /**
+     * Peak heap memory used during the execution, in bytes.
+     */
+    private long peakHeapBytes = 0;
+
+    /**
+     * Peak native memory allocated during the execution, in bytes.
+     */
+    private long peakNativeBytes = 0;
+
+    /**
+     * Time spent tuning the number of parallel tasks, in milliseconds.
+     */
+    private long calibrationTime = 0;
+
     /**
      * Set the original size of the image.
      *
@@ -78,12 +218,67 @@ class Statistics {
     }
 
     /**
-     * Set whether the GPU acceleration is enabled.
+     * Set the height and width of sub-images.
      *
-     * @param gpuAccelerationEnabled Whether the GPU acceleration is enabled.
+     * @param tileSize The size in pixels.
      */
-    public void setGpuAccelerationEnabled(boolean gpuAccelerationEnabled) {
-        this.isGpuAccelerationEnabled = gpuAccelerationEnabled;
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Set the number of sub-images run in a single invocation of the model.
+     *
+     * @param batchSize The batch size.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the number of pixels shared by adjacent sub-images.
+     *
+     * @param overlap The overlap in pixels.
+     */
+    public void setOverlap(int overlap) {
+        this.overlap = overlap;
+    }
+
+    /**
+     * Set the backend on which the model was run.
+     *
+     * @param backend The inference backend.
+     */
+    public void setBackend(InferenceBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Set the number of threads of each interpreter.
+     *
+     * @param intraOpThreadsNumber The number of intra-op threads.
+     */
+    public void setIntraOpThreadsNumber(int intraOpThreadsNumber) {
+        this.intraOpThreadsNumber = intraOpThreadsNumber;
+    }
+
+    /**
+     * Set the model used by the search.
+     *
+     * @param model The metadata of the model.
+     */
+    public void setModel(ModelInfo model) {
+        this.modelName = model.getName();
+        this.modelInputType = model.getInputType();
+    }
+
+    /**
+     * Set whether the model was already loaded when the execution started.
+     *
+     * @param warmSession Whether the model session was warm.
+     */
+    public void setWarmSession(boolean warmSession) {
+        this.isWarmSession = warmSession;
     }
 
     /**
@@ -114,6 +309,59 @@ class Statistics {
         tasksExecutionEnd = new Date().getTime();
     }
 
+    /**
+     * Set the duration of the coarse pass, which is part of the tasks
+     * execution.
+     *
+     * @param milliseconds The duration in milliseconds.
+     */
+    public void setCoarseExecutionTime(long milliseconds) {
+        this.coarseExecutionTime = milliseconds;
+    }
+
+    /**
+     * Trigger the time when the first result is shown.
+     *
+     * <p>Only the first call has effect.</p>
+     */
+    public void triggerFirstResult() {
+        if (firstResult == 0) {
+            firstResult = new Date().getTime();
+        }
+    }
+
+    /**
+     * Add time spent applying the mask.
+     *
+     * @param nanoseconds The time in nanoseconds.
+     */
+    public void addMaskApplicationTime(long nanoseconds) {
+        maskApplicationTime += nanoseconds;
+    }
+
+    /**
+     * Set the inference time of each sub-image.
+     *
+     * @param nanoseconds The times in nanoseconds, zero for sub-images
+     *                    not inferred.
+     */
+    public void setTileTimes(long[] nanoseconds) {
+        long[] times = new long[nanoseconds.length];
+        int count = 0;
+        for (long time : nanoseconds) {
+            if (time > 0) {
+                times[count++] = time;
+            }
+        }
+        if (count == 0) {
+            medianTileTime = maxTileTime = 0;
+            return;
+        }
+        Arrays.sort(times, 0, count);
+        medianTileTime = times[count / 2];
+        maxTileTime = times[count - 1];
+    }
+
     /**
      * Set the number of sub-images/tasks used in the execution.
      *
@@ -123,6 +371,79 @@ class Statistics {
         this.tasksNumber = tasksNumber;
     }
 
+    /**
+     * Set the number of sub-images/tasks skipped because the search
+     * stopped at the first detection of Wally.
+     *
+     * @param skippedTasksNumber The number of skipped sub-images/tasks.
+     */
+    public void setSkippedTasksNumber(int skippedTasksNumber) {
+        this.skippedTasksNumber = skippedTasksNumber;
+    }
+
+    /**
+     * Set the number of sub-images/tasks skipped without running the
+     * model, because they are uniform or mostly padding.
+     *
+     * @param filteredTasksNumber The number of filtered sub-images/tasks.
+     */
+    public void setFilteredTasksNumber(int filteredTasksNumber) {
+        this.filteredTasksNumber = filteredTasksNumber;
+    }
+
+    /**
+     * Set the number of sub-images/tasks whose output was reused from
+     * the tile cache without running the model.
+     *
+     * @param cachedTasksNumber The number of cached sub-images/tasks.
+     */
+    public void setCachedTasksNumber(int cachedTasksNumber) {
+        this.cachedTasksNumber = cachedTasksNumber;
+    }
+
+    /**
+     * Set the number of sub-images/tasks of the coarse pass.
+     *
+     * @param coarseTasksNumber The number of sub-images/tasks.
+     */
+    public void setCoarseTasksNumber(int coarseTasksNumber) {
+        this.coarseTasksNumber = coarseTasksNumber;
+    }
+
+    /**
+     * Set the number of sub-images/tasks not searched at full resolution
+     * because the coarse pass did not find Wally in them.
+     *
+     * @param prunedTasksNumber The number of pruned sub-images/tasks.
+     */
+    public void setPrunedTasksNumber(int prunedTasksNumber) {
+        this.prunedTasksNumber = prunedTasksNumber;
+    }
+
+    /**
+     * Set the detections found in the mask.
+     *
+     * @param detections The detections, ranked by decreasing score.
+     * @param nanoseconds The time spent extracting them in nanoseconds.
+     */
+    public void setDetections(List<Detection> detections, long nanoseconds) {
+        this.detectionsNumber = detections.size();
+        this.topDetectionProbability = detections.isEmpty() ? 0f :
+                detections.get(0).getMeanProbability();
+        this.detectionTime = nanoseconds;
+    }
+
+    /**
+     * Set whether the result has been loaded from the cache.
+     *
+     * @param cacheHit Whether the result was in the cache.
+     * @param cacheHitRate The fraction of searches whose result was in the cache.
+     */
+    public void setCacheHit(boolean cacheHit, float cacheHitRate) {
+        this.isCacheHit = cacheHit;
+        this.cacheHitRate = cacheHitRate;
+    }
+
     /**
      * Set the maximum number of parallel tasks.
      *
@@ -132,29 +453,141 @@ class Statistics {
         this.parallelTasksNumber = parallelTasksNumber;
     }
 
+    /**
+     * Set whether the number of parallel tasks has been reduced to fit in
+     * memory.
+     *
+     * @param memoryLimited Whether the number of parallel tasks was reduced.
+     */
+    public void setMemoryLimited(boolean memoryLimited) {
+        this.isMemoryLimited = memoryLimited;
+    }
+
+    /**
+     * Count a reduction of the workers after running out of memory.
+     */
+    public void addMemoryFallback() {
+        memoryFallbacksNumber++;
+    }
+
+    /**
+     * Set the peak memory observed during the execution.
+     *
+     * @param heapBytes The peak heap memory in bytes.
+     * @param nativeBytes The peak native memory in bytes.
+     */
+    public void setPeakMemory(long heapBytes, long nativeBytes) {
+        this.peakHeapBytes = heapBytes;
+        this.peakNativeBytes = nativeBytes;
+    }
+
+    /**
+     * Set the time spent tuning the number of parallel tasks before the
+     * execution.
+     *
+     * @param milliseconds The duration in milliseconds.
+     */
+    public void setCalibrationTime(long milliseconds) {
+        this.calibrationTime = milliseconds;
+    }
+
     @NonNull
     @Override
     public String toString() {
         float totalExecutionTime = (totalExecutionEnd - totalExecutionStart) / 1000f;
         float taskExecutionTime = (tasksExecutionEnd - tasksExecutionStart) / 1000f;
-        float avgTimePerTask = tasksNumber == 0 ? 0f : taskExecutionTime / tasksNumber;
+        float fineExecutionTime = taskExecutionTime - coarseExecutionTime / 1000f;
+        int executedTasksNumber = tasksNumber - skippedTasksNumber - prunedTasksNumber
+                - filteredTasksNumber - cachedTasksNumber;
+        float avgTimePerTask = executedTasksNumber == 0 ? 0f : fineExecutionTime / executedTasksNumber;
+        float prunedTasksFraction = tasksNumber == 0 ? 0f : 100f * prunedTasksNumber / tasksNumber;
+        // Speedup with respect to the search of all tiles at full
+        // resolution, estimated from the average time per task.
+        float estimatedSpeedup = taskExecutionTime == 0 || executedTasksNumber == 0 ? 1f :
+                avgTimePerTask * tasksNumber / taskExecutionTime;
+        // Megapixels processed by the model per second.
+        float throughput = fineExecutionTime <= 0 ? 0f :
+                executedTasksNumber * (tileSize * tileSize / 1e6f) / fineExecutionTime;
+        // Time not spent on tasks filtered out, estimated in the same way.
+        float filteredTimeSaved = avgTimePerTask * filteredTasksNumber;
+        float timeToFirstResult = firstResult == 0 ? 0f : (firstResult - totalExecutionStart) / 1000f;
         String format = "Original size: %d x %d\n" +
                 "Size with padding: %d x %d\n" +
-                "GPU enabled: %b\n" +
+                "Sub-image size: %d x %d\n" +
+                "Batch size: %d\n" +
+                "Sub-image overlap: %d\n" +
+                "Inference backend: %s\n" +
+                "Model: %s\n" +
+                "Model input type: %s\n" +
+                "Model already loaded: %b\n" +
                 "Number of parallel tasks: %d\n" +
+                "Intra-op threads per task: %d\n" +
+                "Calibration time: %.3f s\n" +
+                "Result from cache: %b\n" +
+                "Cache hit rate: %.1f %%\n" +
                 "Total execution time: %.3f s\n" +
                 "Tasks execution time: %.3f s\n" +
+                "Time to first result: %.3f s\n" +
                 "Number of tasks: %d\n" +
-                "Average time per task: %.3f s\n";
+                "Skipped tasks: %d\n" +
+                "Filtered tasks: %d\n" +
+                "Filtered time saved: %.3f s\n" +
+                "Cached tasks: %d\n" +
+                "Coarse tasks: %d\n" +
+                "Coarse execution time: %.3f s\n" +
+                "Pruned tasks: %.1f %%\n" +
+                "Estimated speedup: %.2fx\n" +
+                "Average time per task: %.3f s\n" +
+                "Median inference time per task: %.3f s\n" +
+                "Max inference time per task: %.3f s\n" +
+                "Throughput: %.2f Mpx/s\n" +
+                "Mask application time: %.3f s\n" +
+                "Detections: %d\n" +
+                "Top detection probability: %.2f\n" +
+                "Detection extraction time: %.3f s\n" +
+                "Limited by memory: %b\n" +
+                "Memory fallbacks: %d\n" +
+                "Peak heap memory: %.1f MB\n" +
+                "Peak native memory: %.1f MB\n";
         return String.format(Locale.getDefault(),
                 format,
                 originalSize.getWidth(), originalSize.getHeight(),
                 paddedSize.getWidth(), paddedSize.getHeight(),
-                isGpuAccelerationEnabled,
+                tileSize, tileSize,
+                batchSize,
+                overlap,
+                backend,
+                modelName,
+                modelInputType,
+                isWarmSession,
                 parallelTasksNumber,
+                intraOpThreadsNumber,
+                calibrationTime / 1000f,
+                isCacheHit,
+                100f * cacheHitRate,
                 totalExecutionTime,
                 taskExecutionTime,
+                timeToFirstResult,
                 tasksNumber,
-                avgTimePerTask);
+                skippedTasksNumber,
+                filteredTasksNumber,
+                filteredTimeSaved,
+                cachedTasksNumber,
+                coarseTasksNumber,
+                coarseExecutionTime / 1000f,
+                prunedTasksFraction,
+                estimatedSpeedup,
+                avgTimePerTask,
+                medianTileTime / 1e9f,
+                maxTileTime / 1e9f,
+                throughput,
+                maskApplicationTime / 1e9f,
+                detectionsNumber,
+                topDetectionProbability,
+                detectionTime / 1e9f,
+                isMemoryLimited,
+                memoryFallbacksNumber,
+                peakHeapBytes / 1048576f,
+                peakNativeBytes / 1048576f);
     }
 }
\ No newline at end of file
@@ -0,0 +1,116 @@
+package it.unipr.advmobdev.whereiswally;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Tensor;
+
+/**
+ * Data type and quantization parameters of an input or output tensor of
+ * the model, detected when the model is loaded.
+ *
+ * <p>A quantized tensor stores a real value <code>r</code> as the integer
+ * <code>q = r / scale + zeroPoint</code>. The float model has float input
+ * and output, while a fully quantized model has 8-bit input and output, so
+ * pixels can be fed without any float conversion.</p>
+ */
+class TensorFormat {
+    /**
+     * Format of a float tensor.
+     */
+    static final TensorFormat FLOAT32 = new TensorFormat(DataType.FLOAT32, 0f, 0);
+
+    /**
+     * The data type of the tensor.
+     */
+    final DataType dataType;
+
+    /**
+     * The difference between real values of consecutive integers.
+     */
+    final float scale;
+
+    /**
+     * The integer that represents the real value zero.
+     */
+    final int zeroPoint;
+
+    /**
+     * Initialize the format.
+     *
+     * @param dataType The data type of the tensor.
+     * @param scale The quantization scale.
+     * @param zeroPoint The quantization zero point.
+     */
+    TensorFormat(DataType dataType, float scale, int zeroPoint) {
+        this.dataType = dataType;
+        this.scale = scale;
+        this.zeroPoint = zeroPoint;
+    }
+
+    /**
+     * Detect the format of a tensor.
+     *
+     * @param tensor The tensor.
+     * @return the format of the tensor.
+     * @throws IllegalArgumentException if the data type is not supported.
+     */
+    static TensorFormat of(Tensor tensor) throws IllegalArgumentException {
+        DataType dataType = tensor.dataType();
+        if (dataType == DataType.FLOAT32) {
+            return FLOAT32;
+        }
+        if (dataType != DataType.UINT8 && dataType != DataType.INT8) {
+            throw new IllegalArgumentException("Unsupported tensor type " + dataType);
+        }
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        if (params.getScale() == 0) {
+            // Without parameters, the full range of the integers maps to
+            // the [0, 1] range of pixels and probabilities.
+            return new TensorFormat(dataType, 1 / 255f, dataType == DataType.INT8 ? -128 : 0);
+        }
+        return new TensorFormat(dataType, params.getScale(), params.getZeroPoint());
+    }
+
+    /**
+     * Check whether the tensor is quantized to 8 bits.
+     *
+     * @return <code>true</code> if values are 8-bit integers,
+     *         <code>false</code> if they are floats.
+     */
+    boolean isQuantized() {
+        return dataType != DataType.FLOAT32;
+    }
+
+    /**
+     * Get the size of a value of the tensor.
+     *
+     * @return the size in bytes.
+     */
+    int getBytesPerValue() {
+        return isQuantized() ? 1 : 4;
+    }
+
+    /**
+     * Quantize a real value.
+     *
+     * @param value The real value.
+     * @return the integer stored in a byte of the tensor.
+     */
+    byte quantize(float value) {
+        int q = Math.round(value / scale) + zeroPoint;
+        if (dataType == DataType.INT8) {
+            return (byte) Math.min(127, Math.max(-128, q));
+        }
+        return (byte) Math.min(255, Math.max(0, q));
+    }
+
+    /**
+     * Dequantize a byte of the tensor.
+     *
+     * @param b The byte of the tensor.
+     * @return the real value.
+     */
+    float dequantize(byte b) {
+        int q = dataType == DataType.INT8 ? b : b & 0xff;
+        return (q - zeroPoint) * scale;
+    }
+}
@@ -0,0 +1,78 @@
+package it.unipr.advmobdev.whereiswally;
+
+/**
+ * Sub-image that flows through the stages of the tile pipeline.
+ *
+ * <p>Tiles are allocated once per search and recycled, so the number of
+ * tiles in memory depends on the number of workers and not on the size
+ * of the image.</p>
+ */
+class Tile {
+    /**
+     * Height and width of the tile.
+     */
+    final int size;
+
+    /**
+     * Pixels of the sub-image in ARGB format.
+     */
+    final int[] pixels;
+
+    /**
+     * Probability of each pixel of the sub-image to belong to Wally,
+     * quantized to one unsigned byte per pixel.
+     */
+    final byte[] output;
+
+    /**
+     * The number of pixels inside the image predicted as Wally with a
+     * probability above the detection threshold of the pipeline.
+     */
+    int confidentPixels;
+
+    /**
+     * Whether the inference has been skipped by the content filter, in
+     * which case the output is empty.
+     */
+    boolean isFiltered;
+
+    /**
+     * Hash of the pixels of the tile, used to look up its output in the
+     * tile cache.
+     */
+    long hash;
+
+    /**
+     * The row-major index of the tile in its grid.
+     */
+    int index;
+
+    /**
+     * The x coordinate of the first pixel of the tile in the image.
+     */
+    int x;
+    /**
+     * The y coordinate of the first pixel of the tile in the image.
+     */
+    int y;
+
+    /**
+     * The width of the tile area inside the image.
+     */
+    int width;
+    /**
+     * The height of the tile area inside the image.
+     */
+    int height;
+
+    /**
+     * Allocate a tile.
+     *
+     * @param size The height and width of the tile.
+     */
+    Tile(int size) {
+        this.size = size;
+        this.pixels = new int[size * size];
+        this.output = new byte[size * size];
+    }
+}
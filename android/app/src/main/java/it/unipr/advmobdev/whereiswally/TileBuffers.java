@@ -0,0 +1,162 @@
+package it.unipr.advmobdev.whereiswally;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Preallocated buffers used by a worker to run the model on a batch of
+ * sub-images.
+ *
+ * <p>Buffers are allocated once per worker and reused for every batch,
+ * so that the processing of a sub-image does not allocate any object on
+ * the heap.</p>
+ *
+ * <p>The layout of the buffers follows the format of the tensors of the
+ * model. With a quantized model, each channel of a pixel is converted to
+ * the quantized input through a lookup table, and the output is converted
+ * to a probability through another table, so no float arithmetic is done
+ * per pixel.</p>
+ */
+class TileBuffers {
+    /**
+     * Height and width of the sub-images.
+     */
+    final int size;
+
+    /**
+     * The number of sub-images in a batch.
+     */
+    final int batchSize;
+
+    /**
+     * The format of the input tensor.
+     */
+    final TensorFormat inputFormat;
+
+    /**
+     * The format of the output tensor.
+     */
+    final TensorFormat outputFormat;
+
+    /**
+     * Direct buffer used as model input.
+     * Dimensions: batchSize x size x size x 3 channels.
+     */
+    final ByteBuffer input;
+    /**
+     * Float view of the input buffer, or <code>null</code> if the input
+     * is quantized.
+     */
+    final FloatBuffer inputFloats;
+
+    /**
+     * Direct buffer used as model output.
+     * Dimensions: batchSize x size x size x 1 channel.
+     */
+    final ByteBuffer output;
+    /**
+     * Float view of the output buffer, or <code>null</code> if the output
+     * is quantized.
+     */
+    final FloatBuffer outputFloats;
+
+    /**
+     * Quantized input of each value of a channel, if the input is quantized.
+     */
+    private final byte[] inputTable;
+
+    /**
+     * Probability of each quantized output, if the output is quantized.
+     */
+    private final float[] outputTable;
+
+    /**
+     * Allocate buffers for a batch of sub-images.
+     *
+     * @param size The height and width of the sub-images.
+     * @param batchSize The number of sub-images in a batch.
+     * @param inputFormat The format of the input tensor.
+     * @param outputFormat The format of the output tensor.
+     */
+    TileBuffers(int size, int batchSize, TensorFormat inputFormat, TensorFormat outputFormat) {
+        this.size = size;
+        this.batchSize = batchSize;
+        this.inputFormat = inputFormat;
+        this.outputFormat = outputFormat;
+        input = ByteBuffer.allocateDirect(batchSize * size * size * 3 * inputFormat.getBytesPerValue())
+                .order(ByteOrder.nativeOrder());
+        output = ByteBuffer.allocateDirect(batchSize * size * size * outputFormat.getBytesPerValue())
+                .order(ByteOrder.nativeOrder());
+
+        if (inputFormat.isQuantized()) {
+            inputFloats = null;
+            inputTable = new byte[256];
+            for (int v = 0; v < 256; v++) {
+                inputTable[v] = inputFormat.quantize(v / 255f);
+            }
+        } else {
+            inputFloats = input.asFloatBuffer();
+            inputTable = null;
+        }
+
+        if (outputFormat.isQuantized()) {
+            outputFloats = null;
+            outputTable = new float[256];
+            for (int q = 0; q < 256; q++) {
+                outputTable[q] = outputFormat.dequantize((byte) q);
+            }
+        } else {
+            outputFloats = output.asFloatBuffer();
+            outputTable = null;
+        }
+    }
+
+    /**
+     * Copy pixels into the input buffer at the given position of the
+     * batch, converting RGB values from [0, 255] to [0, 1].
+     *
+     * @param index The position of the sub-image in the batch.
+     * @param pixels The pixels of the sub-image in ARGB format.
+     */
+    void loadInput(int index, int[] pixels) {
+        int p;
+        int j = index * size * size * 3;
+        if (inputTable != null) {
+            for (int i = 0; i < pixels.length; i++, j += 3) {
+                p = pixels[i];
+                input.put(j, inputTable[(p >> 16) & 0xff]);
+                input.put(j + 1, inputTable[(p >> 8) & 0xff]);
+                input.put(j + 2, inputTable[p & 0xff]);
+            }
+            return;
+        }
+        for (int i = 0; i < pixels.length; i++, j += 3) {
+            p = pixels[i];
+            inputFloats.put(j, ((p >> 16) & 0xff) / 255f);
+            inputFloats.put(j + 1, ((p >> 8) & 0xff) / 255f);
+            inputFloats.put(j + 2, (p & 0xff) / 255f);
+        }
+    }
+
+    /**
+     * Get the probability predicted for a pixel.
+     *
+     * @param index The index of the pixel in the output of the batch.
+     * @return the probability of the pixel to belong to Wally.
+     */
+    float getProbability(int index) {
+        if (outputTable != null) {
+            return outputTable[output.get(index) & 0xff];
+        }
+        return outputFloats.get(index);
+    }
+
+    /**
+     * Rewind the buffers before running the model.
+     */
+    void rewind() {
+        input.rewind();
+        output.rewind();
+    }
+}
@@ -0,0 +1,330 @@
+package it.unipr.advmobdev.whereiswally;
+
+import java.util.Arrays;
+
+/**
+ * In-memory cache of the output of the model for single tiles.
+ *
+ * <p>Tiles are identified by the hash of their pixels, so identical tiles
+ * are inferred only once, also across searches with a different number of
+ * parallel tasks or acceleration, and across images that share regions
+ * aligned to the grid. The least recently used outputs are evicted when
+ * the cache exceeds its maximum size in bytes.</p>
+ *
+ * <p>Entries are stored in parallel arrays, chained by bucket of a hash
+ * table and by access order in a doubly-linked list, so looking up and
+ * storing outputs does not box hashes or allocate nodes. Once the cache
+ * is full, the buffer of an evicted output is reused for the new one, so
+ * in steady state a miss does not allocate.</p>
+ *
+ * <p>The cache is shared by the decoder and the workers of the pipeline,
+ * so all methods are synchronized.</p>
+ */
+class TileCache {
+    /**
+     * Default maximum size of the cache in bytes.
+     */
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Initial number of entries, a power of 2.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Index that marks the end of a chain of entries.
+     */
+    private static final int NONE = -1;
+
+    /**
+     * The maximum size of the cache in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * The current size of the cache in bytes.
+     */
+    private long bytes;
+
+    /**
+     * The hash of the tile of each entry.
+     */
+    private long[] hashes;
+    /**
+     * The quantized probabilities of each entry, or <code>null</code> for
+     * free entries.
+     */
+    private byte[][] outputs;
+    /**
+     * The number of confident pixels of each entry.
+     */
+    private int[] confidentPixels;
+
+    /**
+     * The first entry of each bucket of the hash table.
+     */
+    private int[] buckets;
+    /**
+     * The next entry of the same bucket, or of the list of free entries.
+     */
+    private int[] nextInBucket;
+
+    /**
+     * The entry used just after each entry.
+     */
+    private int[] newer;
+    /**
+     * The entry used just before each entry.
+     */
+    private int[] older;
+    /**
+     * The most recently used entry.
+     */
+    private int newest;
+    /**
+     * The least recently used entry, which is evicted first.
+     */
+    private int oldest;
+
+    /**
+     * The first free entry.
+     */
+    private int firstFree;
+
+    /**
+     * Initialize an empty cache.
+     *
+     * @param maxBytes The maximum size of the cache in bytes.
+     */
+    TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        reset();
+    }
+
+    /**
+     * Compute the hash that identifies a decoded tile.
+     *
+     * <p>The area of the tile inside the image and the detection
+     * probability are part of the hash, because they change the number of
+     * confident pixels.</p>
+     *
+     * @param tile The decoded tile.
+     * @param detectionProbability The probability above which a pixel is
+     *                             a confident detection.
+     * @return the hash of the tile.
+     */
+    static long hash(Tile tile, float detectionProbability) {
+        long seed = ((long) tile.width << 48) ^ ((long) tile.height << 32)
+                ^ Float.floatToIntBits(detectionProbability);
+        return XxHash64.hash(tile.pixels, 0, tile.pixels.length, seed);
+    }
+
+    /**
+     * Copy the cached output of a tile into the tile.
+     *
+     * @param tile The tile, whose hash is set.
+     * @return <code>true</code> if the output was in the cache,
+     *         <code>false</code> otherwise.
+     */
+    synchronized boolean get(Tile tile) {
+        int entry = find(tile.hash);
+        if (entry == NONE || outputs[entry].length != tile.output.length) {
+            return false;
+        }
+        System.arraycopy(outputs[entry], 0, tile.output, 0, tile.output.length);
+        tile.confidentPixels = confidentPixels[entry];
+        unlink(entry);
+        linkAsNewest(entry);
+        return true;
+    }
+
+    /**
+     * Store the output of a tile, evicting the least recently used ones
+     * if the cache is full.
+     *
+     * @param tile The inferred tile, whose hash is set.
+     */
+    synchronized void put(Tile tile) {
+        int size = tile.output.length;
+        if (size > maxBytes || find(tile.hash) != NONE) {
+            return;
+        }
+        // Reuse the buffer of an evicted output of the same size.
+        byte[] buffer = null;
+        while (bytes + size > maxBytes) {
+            byte[] evicted = remove(oldest);
+            bytes -= evicted.length;
+            if (evicted.length == size) {
+                buffer = evicted;
+            }
+        }
+        if (buffer == null) {
+            buffer = new byte[size];
+        }
+        System.arraycopy(tile.output, 0, buffer, 0, size);
+
+        if (firstFree == NONE) {
+            grow();
+        }
+        int entry = firstFree;
+        firstFree = nextInBucket[entry];
+        hashes[entry] = tile.hash;
+        outputs[entry] = buffer;
+        confidentPixels[entry] = tile.confidentPixels;
+        int bucket = getBucket(tile.hash);
+        nextInBucket[entry] = buckets[bucket];
+        buckets[bucket] = entry;
+        linkAsNewest(entry);
+        bytes += size;
+    }
+
+    /**
+     * Remove all outputs from the cache.
+     */
+    synchronized void clear() {
+        reset();
+    }
+
+    /**
+     * Allocate the arrays for the initial number of entries, dropping all
+     * outputs.
+     */
+    private void reset() {
+        hashes = new long[INITIAL_CAPACITY];
+        outputs = new byte[INITIAL_CAPACITY][];
+        confidentPixels = new int[INITIAL_CAPACITY];
+        nextInBucket = new int[INITIAL_CAPACITY];
+        newer = new int[INITIAL_CAPACITY];
+        older = new int[INITIAL_CAPACITY];
+        buckets = new int[INITIAL_CAPACITY];
+        Arrays.fill(buckets, NONE);
+        newest = oldest = NONE;
+        bytes = 0;
+        firstFree = NONE;
+        addFreeEntries(0, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Double the number of entries, rehashing the stored ones.
+     *
+     * <p>The cache grows only while it is filled, until the maximum size
+     * in bytes is reached.</p>
+     */
+    private void grow() {
+        int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        outputs = Arrays.copyOf(outputs, capacity);
+        confidentPixels = Arrays.copyOf(confidentPixels, capacity);
+        nextInBucket = Arrays.copyOf(nextInBucket, capacity);
+        newer = Arrays.copyOf(newer, capacity);
+        older = Arrays.copyOf(older, capacity);
+        buckets = new int[capacity];
+        Arrays.fill(buckets, NONE);
+        for (int entry = 0; entry < capacity / 2; entry++) {
+            if (outputs[entry] != null) {
+                int bucket = getBucket(hashes[entry]);
+                nextInBucket[entry] = buckets[bucket];
+                buckets[bucket] = entry;
+            }
+        }
+        addFreeEntries(capacity / 2, capacity);
+    }
+
+    /**
+     * Add a range of entries to the list of free entries.
+     *
+     * @param from The first entry, inclusive.
+     * @param to The last entry, exclusive.
+     */
+    private void addFreeEntries(int from, int to) {
+        for (int entry = to - 1; entry >= from; entry--) {
+            nextInBucket[entry] = firstFree;
+            firstFree = entry;
+        }
+    }
+
+    /**
+     * Get the bucket of the hash table of a hash.
+     *
+     * @param hash The hash of a tile.
+     * @return the index of the bucket.
+     */
+    private int getBucket(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & (buckets.length - 1);
+    }
+
+    /**
+     * Find the entry of a hash.
+     *
+     * @param hash The hash of a tile.
+     * @return the index of the entry, or {@link #NONE} if not cached.
+     */
+    private int find(long hash) {
+        int entry = buckets[getBucket(hash)];
+        while (entry != NONE && hashes[entry] != hash) {
+            entry = nextInBucket[entry];
+        }
+        return entry;
+    }
+
+    /**
+     * Remove an entry from the hash table and from the access order, and
+     * add it to the free entries.
+     *
+     * @param entry The index of the entry.
+     * @return the output of the removed entry.
+     */
+    private byte[] remove(int entry) {
+        int bucket = getBucket(hashes[entry]);
+        if (buckets[bucket] == entry) {
+            buckets[bucket] = nextInBucket[entry];
+        } else {
+            int previous = buckets[bucket];
+            while (nextInBucket[previous] != entry) {
+                previous = nextInBucket[previous];
+            }
+            nextInBucket[previous] = nextInBucket[entry];
+        }
+        unlink(entry);
+
+        byte[] output = outputs[entry];
+        outputs[entry] = null;
+        nextInBucket[entry] = firstFree;
+        firstFree = entry;
+        return output;
+    }
+
+    /**
+     * Remove an entry from the access order.
+     *
+     * @param entry The index of the entry.
+     */
+    private void unlink(int entry) {
+        if (newer[entry] == NONE) {
+            newest = older[entry];
+        } else {
+            older[newer[entry]] = older[entry];
+        }
+        if (older[entry] == NONE) {
+            oldest = newer[entry];
+        } else {
+            newer[older[entry]] = newer[entry];
+        }
+    }
+
+    /**
+     * Insert an entry as the most recently used one.
+     *
+     * @param entry The index of the entry.
+     */
+    private void linkAsNewest(int entry) {
+        newer[entry] = NONE;
+        older[entry] = newest;
+        if (newest == NONE) {
+            oldest = entry;
+        } else {
+            newer[newest] = entry;
+        }
+        newest = entry;
+    }
+}
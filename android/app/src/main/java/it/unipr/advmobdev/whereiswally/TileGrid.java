@@ -0,0 +1,173 @@
+package it.unipr.advmobdev.whereiswally;
+
+/**
+ * Grid of tiles that covers an image, with an optional overlap between
+ * adjacent tiles.
+ *
+ * <p>Tiles are placed every <code>stride = tileSize - overlap</code>
+ * pixels and indexed in row-major order. The last tiles of each axis may
+ * exceed the image borders, in which case they are virtually padded.</p>
+ */
+class TileGrid {
+    /**
+     * Height and width of tiles.
+     */
+    private final int tileSize;
+    /**
+     * Number of pixels shared by adjacent tiles.
+     */
+    private final int overlap;
+    /**
+     * Distance between the origins of adjacent tiles.
+     */
+    private final int stride;
+
+    /**
+     * The number of tiles along the x-axis.
+     */
+    private final int numTilesX;
+    /**
+     * The number of tiles along the y-axis.
+     */
+    private final int numTilesY;
+
+    /**
+     * Create the grid that covers an image.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param tileSize The height and width of tiles.
+     * @param overlap The number of pixels shared by adjacent tiles, at
+     *                most half of the tile size.
+     */
+    TileGrid(int width, int height, int tileSize, int overlap) {
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.stride = tileSize - overlap;
+        this.numTilesX = Math.max(1, (width - overlap + stride - 1) / stride);
+        this.numTilesY = Math.max(1, (height - overlap + stride - 1) / stride);
+    }
+
+    /**
+     * Get the height and width of tiles.
+     *
+     * @return the size in pixels.
+     */
+    int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Get the number of pixels shared by adjacent tiles.
+     *
+     * @return the overlap in pixels.
+     */
+    int getOverlap() {
+        return overlap;
+    }
+
+    /**
+     * Get the number of tiles along the x-axis.
+     *
+     * @return the number of columns.
+     */
+    int getNumTilesX() {
+        return numTilesX;
+    }
+
+    /**
+     * Get the number of tiles along the y-axis.
+     *
+     * @return the number of rows.
+     */
+    int getNumTilesY() {
+        return numTilesY;
+    }
+
+    /**
+     * Get the number of tiles of the grid.
+     *
+     * @return the number of tiles.
+     */
+    int size() {
+        return numTilesX * numTilesY;
+    }
+
+    /**
+     * Get the width covered by the grid, padding included.
+     *
+     * @return the width in pixels.
+     */
+    int getPaddedWidth() {
+        return (numTilesX - 1) * stride + tileSize;
+    }
+
+    /**
+     * Get the height covered by the grid, padding included.
+     *
+     * @return the height in pixels.
+     */
+    int getPaddedHeight() {
+        return (numTilesY - 1) * stride + tileSize;
+    }
+
+    /**
+     * Get the x coordinate of the first pixel of a tile.
+     *
+     * @param index The row-major index of the tile.
+     * @return the x coordinate in the image.
+     */
+    int getTileX(int index) {
+        return (index % numTilesX) * stride;
+    }
+
+    /**
+     * Get the y coordinate of the first pixel of a tile.
+     *
+     * @param index The row-major index of the tile.
+     * @return the y coordinate in the image.
+     */
+    int getTileY(int index) {
+        return (index / numTilesX) * stride;
+    }
+
+    /**
+     * Get the first column of tiles that contains the given x coordinate.
+     *
+     * @param x The x coordinate in the image.
+     * @return the column index.
+     */
+    int getFirstColumn(int x) {
+        return Math.max(0, (x - tileSize + stride) / stride);
+    }
+
+    /**
+     * Get the last column of tiles that contains the given x coordinate.
+     *
+     * @param x The x coordinate in the image.
+     * @return the column index.
+     */
+    int getLastColumn(int x) {
+        return Math.min(numTilesX - 1, x / stride);
+    }
+
+    /**
+     * Get the first row of tiles that contains the given y coordinate.
+     *
+     * @param y The y coordinate in the image.
+     * @return the row index.
+     */
+    int getFirstRow(int y) {
+        return Math.max(0, (y - tileSize + stride) / stride);
+    }
+
+    /**
+     * Get the last row of tiles that contains the given y coordinate.
+     *
+     * @param y The y coordinate in the image.
+     * @return the row index.
+     */
+    int getLastRow(int y) {
+        return Math.min(numTilesY - 1, y / stride);
+    }
+}
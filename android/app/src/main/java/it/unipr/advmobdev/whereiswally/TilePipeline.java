@@ -0,0 +1,550 @@
+package it.unipr.advmobdev.whereiswally;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Pipeline that predicts the mask of an image tile by tile.
+ *
+ * <p>The pipeline is composed by three stages connected by bounded
+ * queues:</p>
+ * <ol>
+ *     <li>a decoder thread reads tiles from the image file;</li>
+ *     <li>the workers of the interpreter pool run the model on them;</li>
+ *     <li>the calling thread writes back the predicted probabilities.</li>
+ * </ol>
+ *
+ * <p>In this way, the decoding of the next tile overlaps the inference
+ * of the current ones. Tiles are taken from a fixed set of recycled
+ * tiles, so the decoder waits when too many tiles are in flight. Tiles
+ * without content and tiles whose output is in the tile cache are
+ * detected by the decoder and sent directly to the writer.</p>
+ */
+class TilePipeline {
+    /**
+     * Stage that writes back the result of the inference.
+     */
+    interface TileWriter {
+        /**
+         * Write back the probabilities predicted for a tile.
+         *
+         * <p>This method is called by the thread that runs the pipeline.
+         * The tile is recycled after this method returns.</p>
+         *
+         * @param tile The tile whose output contains the probabilities.
+         * @return <code>true</code> to continue, <code>false</code> to stop
+         *         the pipeline without processing the remaining tiles.
+         */
+        boolean write(Tile tile);
+    }
+
+    /**
+     * Number of batches of tiles in flight for each worker.
+     */
+    static final int BATCHES_PER_WORKER = 2;
+
+    /**
+     * Marker that tells workers that there are no more tiles.
+     */
+    private static final Tile END_OF_TILES = new Tile(0);
+    /**
+     * Marker that tells the writer that a stage failed.
+     */
+    private static final Tile FAILURE = new Tile(0);
+
+    /**
+     * The pool of workers that run the model.
+     */
+    private final InterpreterPool interpreterPool;
+
+    /**
+     * The number of workers that run the model in parallel.
+     */
+    private final int workersNumber;
+
+    /**
+     * Height and width of tiles.
+     */
+    private final int tileSize;
+
+    /**
+     * The number of tiles run by a worker in a single invocation.
+     */
+    private final int batchSize;
+
+    /**
+     * The probability above which a pixel is counted as a confident
+     * detection in the tile.
+     */
+    private final float detectionProbability;
+
+    /**
+     * The minimum variance of the luminance of a tile, below which the
+     * tile is considered uniform and the inference is skipped.
+     */
+    private float minContentVariance = 0;
+    /**
+     * The minimum fraction of a tile inside the image, below which the
+     * tile is considered padding and the inference is skipped.
+     */
+    private float minContentFraction = 0;
+
+    /**
+     * The number of tiles skipped by the content filter in the last run.
+     */
+    private int filteredTilesNumber;
+
+    /**
+     * The cache of the outputs of tiles, or <code>null</code> if disabled.
+     */
+    private TileCache tileCache;
+
+    /**
+     * The number of tiles whose output was found in the cache in the last
+     * run.
+     */
+    private int cachedTilesNumber;
+
+    /**
+     * Inference time in nanoseconds of each tile of the grid in the last
+     * run, written by the workers without locking. A tile whose inference
+     * is skipped has no time.
+     */
+    private AtomicLongArray tileTimes;
+
+    /**
+     * Tiles ready to be decoded.
+     */
+    private final BlockingQueue<Tile> freeTiles;
+    /**
+     * Tiles ready for the inference.
+     */
+    private final BlockingQueue<Tile> decodedTiles;
+    /**
+     * Tiles ready to be written back.
+     */
+    private final BlockingQueue<Tile> inferredTiles;
+
+    /**
+     * The error that caused the failure of a stage.
+     */
+    private volatile Throwable failure;
+
+    /**
+     * Initialize the pipeline.
+     *
+     * @param interpreterPool The pool of workers that run the model.
+     * @param workersNumber The number of workers that run the model in parallel.
+     * @param tileSize The height and width of tiles.
+     * @param batchSize The number of tiles run by a worker in a single invocation.
+     * @param detectionProbability The probability above which a pixel is
+     *                             a confident detection.
+     */
+    TilePipeline(InterpreterPool interpreterPool, int workersNumber,
+                 int tileSize, int batchSize, float detectionProbability) {
+        this.interpreterPool = interpreterPool;
+        this.workersNumber = workersNumber;
+        this.tileSize = tileSize;
+        this.batchSize = batchSize;
+        this.detectionProbability = detectionProbability;
+
+        int capacity = workersNumber * batchSize * BATCHES_PER_WORKER;
+        freeTiles = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            freeTiles.add(new Tile(tileSize));
+        }
+        // Leave room for the markers of each worker and of the decoder.
+        decodedTiles = new ArrayBlockingQueue<>(capacity + workersNumber);
+        inferredTiles = new ArrayBlockingQueue<>(capacity + workersNumber + 1);
+    }
+
+    /**
+     * Set the thresholds of the filter that skips the inference of tiles
+     * without content, such as blank margins and padding, whose mask is
+     * left empty.
+     *
+     * @param minContentVariance The minimum variance of the luminance,
+     *                           or zero to disable the filter.
+     * @param minContentFraction The minimum fraction of the tile inside
+     *                           the image, between 0 and 1, checked only
+     *                           if the filter is enabled.
+     */
+    void setContentFilter(float minContentVariance, float minContentFraction) {
+        this.minContentVariance = minContentVariance;
+        this.minContentFraction = minContentFraction;
+    }
+
+    /**
+     * Set the cache used to skip the inference of tiles already inferred,
+     * in this or in previous runs.
+     *
+     * @param tileCache The cache, or <code>null</code> to disable it.
+     */
+    void setTileCache(TileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Get the number of tiles whose output was found in the cache in the
+     * last run.
+     *
+     * @return the number of cached tiles.
+     */
+    int getCachedTilesNumber() {
+        return cachedTilesNumber;
+    }
+
+    /**
+     * Get the number of tiles skipped by the content filter in the last
+     * run.
+     *
+     * @return the number of skipped tiles.
+     */
+    int getFilteredTilesNumber() {
+        return filteredTilesNumber;
+    }
+
+    /**
+     * Get the inference time of each tile of the grid in the last run.
+     *
+     * <p>The time of a batch is split evenly between its tiles.</p>
+     *
+     * @return the times in nanoseconds, indexed by the row-major index of
+     *         the tile, zero for tiles not inferred.
+     */
+    AtomicLongArray getTileTimes() {
+        return tileTimes;
+    }
+
+    /**
+     * Run the pipeline on all tiles of a grid, in row-major order.
+     *
+     * @param tileSource The source of tiles.
+     * @param grid The grid of tiles.
+     * @param writer The stage that writes back the results.
+     * @return the number of tiles written back, which is less than the
+     *         number of tiles if the writer stopped the pipeline.
+     * @throws InterruptedException if the calling thread is interrupted.
+     * @throws ExecutionException if a stage aborted throwing an exception.
+     */
+    int run(TileSource tileSource, TileGrid grid, TileWriter writer)
+            throws InterruptedException, ExecutionException
+    {
+        int[] tiles = new int[grid.size()];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = i;
+        }
+        return run(tileSource, grid, tiles, writer);
+    }
+
+    /**
+     * Run the pipeline on a subset of the tiles of a grid.
+     *
+     * @param tileSource The source of tiles.
+     * @param grid The grid of tiles.
+     * @param tiles The row-major indexes of the tiles to be processed.
+     * @param writer The stage that writes back the results.
+     * @return the number of tiles written back, which is less than the
+     *         number of tiles if the writer stopped the pipeline.
+     * @throws InterruptedException if the calling thread is interrupted.
+     * @throws ExecutionException if a stage aborted throwing an exception.
+     */
+    int run(final TileSource tileSource, final TileGrid grid, final int[] tiles,
+            TileWriter writer)
+            throws InterruptedException, ExecutionException
+    {
+        filteredTilesNumber = 0;
+        cachedTilesNumber = 0;
+        tileTimes = new AtomicLongArray(grid.size());
+        Thread decoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decodeTiles(tileSource, grid, tiles);
+            }
+        }, "TileDecoder");
+        decoder.start();
+
+        List<Future<Void>> workers = new ArrayList<>();
+        int written = 0;
+        try {
+            for (int i = 0; i < workersNumber; i++) {
+                workers.add(interpreterPool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        inferTiles();
+                        return null;
+                    }
+                }));
+            }
+
+            boolean isRunning = true;
+            while (isRunning && written < tiles.length) {
+                Tile tile = inferredTiles.take();
+                if (tile == FAILURE) {
+                    throw new ExecutionException(failure);
+                }
+                isRunning = writer.write(tile);
+                written++;
+                freeTiles.put(tile);
+            }
+
+        } finally {
+            // The decoder is still running only if the pipeline failed,
+            // has been stopped by the writer or has been cancelled.
+            decoder.interrupt();
+            boolean isInterrupted = joinUninterruptibly(decoder);
+            // Stop workers after they complete the current tile.
+            decodedTiles.drainTo(freeTiles);
+            for (int i = 0; i < workers.size(); i++) {
+                decodedTiles.add(END_OF_TILES);
+            }
+            for (Future<Void> worker : workers) {
+                isInterrupted |= getUninterruptibly(worker);
+            }
+            // Recycle the tiles not written back, so that the pipeline
+            // can be run again, and drop the markers of failed workers.
+            decodedTiles.clear();
+            for (Tile tile; (tile = inferredTiles.poll()) != null; ) {
+                if (tile != FAILURE) {
+                    freeTiles.add(tile);
+                }
+            }
+            if (isInterrupted) {
+                // Keep the cancellation for the caller.
+                Thread.currentThread().interrupt();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Wait for the decoder to terminate, even if the calling thread is
+     * interrupted meanwhile, so that no stage is left running.
+     *
+     * @param decoder The decoder thread.
+     * @return <code>true</code> if the calling thread has been interrupted
+     *         while waiting, <code>false</code> otherwise.
+     */
+    private static boolean joinUninterruptibly(Thread decoder) {
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                decoder.join();
+                return isInterrupted;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+    }
+
+    /**
+     * Wait for a worker to terminate, even if the calling thread is
+     * interrupted meanwhile, so that no worker is left waiting for tiles.
+     *
+     * @param worker The result of the worker.
+     * @return <code>true</code> if the calling thread has been interrupted
+     *         while waiting, <code>false</code> otherwise.
+     */
+    private static boolean getUninterruptibly(Future<Void> worker) {
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                worker.get();
+                return isInterrupted;
+            } catch (ExecutionException e) {
+                // Workers report their errors to the writer.
+                e.printStackTrace();
+                return isInterrupted;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+    }
+
+    /**
+     * First stage: decode tiles from the image file.
+     *
+     * @param tileSource The source of tiles.
+     * @param grid The grid of tiles.
+     * @param tiles The row-major indexes of the tiles to be decoded.
+     */
+    private void decodeTiles(TileSource tileSource, TileGrid grid, int[] tiles) {
+        try {
+            for (int index : tiles) {
+                // Wait until a tile is recycled by the writer.
+                Tile tile = freeTiles.take();
+                tile.index = index;
+                tile.x = grid.getTileX(index);
+                tile.y = grid.getTileY(index);
+                tileSource.readTile(tile);
+                tile.isFiltered = !hasContent(tile);
+                if (tile.isFiltered) {
+                    // Skip the inference: the tile goes straight to the
+                    // writer with an empty mask.
+                    Arrays.fill(tile.output, (byte) 0);
+                    tile.confidentPixels = 0;
+                    filteredTilesNumber++;
+                    inferredTiles.put(tile);
+                } else if (tileCache != null && isCached(tile)) {
+                    // Reuse the output of an identical tile.
+                    cachedTilesNumber++;
+                    inferredTiles.put(tile);
+                } else {
+                    decodedTiles.put(tile);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            // The pipeline has been stopped.
+
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Look up the output of a tile in the cache, setting the hash of the
+     * tile so that workers can store its output.
+     *
+     * @param tile The decoded tile.
+     * @return <code>true</code> if the output has been copied from the
+     *         cache, <code>false</code> otherwise.
+     */
+    private boolean isCached(Tile tile) {
+        tile.hash = TileCache.hash(tile, detectionProbability);
+        return tileCache.get(tile);
+    }
+
+    /**
+     * Check whether a tile has enough content to be worth the inference,
+     * based on the fraction of padding and on the variance of the
+     * luminance of the pixels inside the image.
+     *
+     * @param tile The decoded tile.
+     * @return <code>true</code> if the tile has to be processed by the
+     *         model, <code>false</code> otherwise.
+     */
+    private boolean hasContent(Tile tile) {
+        if (minContentVariance <= 0) {
+            return true;
+        }
+        int count = tile.width * tile.height;
+        if (count < minContentFraction * tile.size * tile.size) {
+            return false;
+        }
+        long sum = 0, sumOfSquares = 0;
+        for (int j = 0; j < tile.height; j++) {
+            for (int i = j * tile.size, end = i + tile.width; i < end; i++) {
+                int rgb = tile.pixels[i];
+                int luminance = (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3;
+                sum += luminance;
+                sumOfSquares += luminance * luminance;
+            }
+        }
+        double mean = (double) sum / count;
+        return (double) sumOfSquares / count - mean * mean >= minContentVariance;
+    }
+
+    /**
+     * Second stage: run the model on batches of decoded tiles.
+     *
+     * <p>This method is executed by each worker of the interpreter pool,
+     * until the end-of-tiles marker is received. A batch is run as soon as
+     * one tile is available, together with the tiles already decoded: the
+     * unused positions of a partial batch are ignored.</p>
+     */
+    private void inferTiles() {
+        try {
+            TileBuffers buffers = interpreterPool.getTileBuffers(tileSize, batchSize);
+            Interpreter interpreter = interpreterPool.getInterpreter(batchSize, tileSize);
+
+            Tile[] batch = new Tile[batchSize];
+            boolean isRunning = true;
+            while (isRunning) {
+                int count = 0;
+                Tile tile = decodedTiles.take();
+                while (tile != null && tile != END_OF_TILES) {
+                    batch[count++] = tile;
+                    tile = count < batchSize ? decodedTiles.poll() : null;
+                }
+                isRunning = tile != END_OF_TILES;
+                if (count == 0) {
+                    continue;
+                }
+
+                // Input images: buffer of floats or quantized bytes
+                // Dimensions: batchSize x tileSize x tileSize x 3 channels
+                for (int k = 0; k < count; k++) {
+                    buffers.loadInput(k, batch[k].pixels);
+                }
+                buffers.rewind();
+
+                long start = System.nanoTime();
+                interpreter.run(buffers.input, buffers.output);
+                long time = (System.nanoTime() - start) / count;
+
+                // Output masks: buffer of floats or quantized bytes
+                // Dimensions: batchSize x tileSize x tileSize x 1 channel
+                for (int k = 0; k < count; k++) {
+                    readOutput(batch[k], buffers, k * tileSize * tileSize);
+                    tileTimes.set(batch[k].index, time);
+                    if (tileCache != null) {
+                        tileCache.put(batch[k]);
+                    }
+                    inferredTiles.put(batch[k]);
+                    batch[k] = null;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            // The pipeline has been stopped.
+
+        } catch (RuntimeException | OutOfMemoryError e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Copy the output of the model for a tile, quantizing probabilities
+     * to one byte.
+     *
+     * @param tile The tile.
+     * @param buffers The buffers that contain the output of the model.
+     * @param offset The position of the output of the tile.
+     */
+    private void readOutput(Tile tile, TileBuffers buffers, int offset) {
+        byte[] output = tile.output;
+        int confidentPixels = 0;
+        for (int i = 0; i < output.length; i++) {
+            float probability = buffers.getProbability(offset + i);
+            output[i] = (byte) (Math.min(1f, Math.max(0f, probability)) * 255 + 0.5f);
+            // Padding pixels lie outside the image and are not
+            // counted as detections.
+            if (probability > detectionProbability
+                    && i % tileSize < tile.width && i / tileSize < tile.height) {
+                confidentPixels++;
+            }
+        }
+        tile.confidentPixels = confidentPixels;
+    }
+
+    /**
+     * Report the failure of a stage to the writer.
+     *
+     * @param e The error that caused the failure.
+     */
+    private void fail(Throwable e) {
+        failure = e;
+        inferredTiles.offer(FAILURE);
+    }
+}
@@ -0,0 +1,191 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of sub-images decoded on demand from the image file.
+ *
+ * <p>Only the region of a sub-image is decoded, right before it is
+ * needed by the workers, so no padded copy of the image is made.
+ * Sub-images that exceed the borders of the image are virtually padded
+ * with zeros.</p>
+ *
+ * <p>Tiles must be read by one thread at a time, since the decoding
+ * buffers are shared.</p>
+ */
+class TileSource {
+    /**
+     * The decoder of image regions.
+     */
+    private final BitmapRegionDecoder decoder;
+
+    /**
+     * The subsampling factor of the decoded image, a power of 2.
+     */
+    private final int sampleSize;
+
+    /**
+     * The width of the image after subsampling.
+     */
+    private final int width;
+    /**
+     * The height of the image after subsampling.
+     */
+    private final int height;
+
+    /**
+     * Bitmap reused to decode the region of a tile.
+     */
+    private Bitmap regionBitmap;
+    /**
+     * Options that make the decoder reuse the region bitmap.
+     */
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    /**
+     * The region of the image covered by a tile.
+     */
+    private final Rect region = new Rect();
+
+    /**
+     * Open the image with the given URI.
+     *
+     * @param contentResolver The content resolver.
+     * @param uri The URI of the image as string.
+     * @return the tile source.
+     * @throws IOException if the image cannot be opened or decoded.
+     */
+    static TileSource open(ContentResolver contentResolver, String uri) throws IOException {
+        return open(contentResolver, uri, 1);
+    }
+
+    /**
+     * Open the image with the given URI, downscaled by the given factor.
+     *
+     * <p>Tile coordinates refer to the downscaled image, so a tile covers
+     * <code>sampleSize</code> times more pixels of the original one.</p>
+     *
+     * @param contentResolver The content resolver.
+     * @param uri The URI of the image as string.
+     * @param sampleSize The subsampling factor, a power of 2.
+     * @return the tile source.
+     * @throws IOException if the image cannot be opened or decoded.
+     */
+    static TileSource open(ContentResolver contentResolver, String uri, int sampleSize)
+            throws IOException
+    {
+        InputStream is = contentResolver.openInputStream(Uri.parse(uri));
+        if (is == null) {
+            throw new FileNotFoundException("Unable to open " + uri);
+        }
+        try {
+            return new TileSource(BitmapRegionDecoder.newInstance(is, false), sampleSize);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Initialize the source.
+     *
+     * @param decoder The decoder of image regions.
+     * @param sampleSize The subsampling factor, a power of 2.
+     */
+    private TileSource(BitmapRegionDecoder decoder, int sampleSize) {
+        this.decoder = decoder;
+        this.sampleSize = sampleSize;
+        this.width = decoder.getWidth() / sampleSize;
+        this.height = decoder.getHeight() / sampleSize;
+        decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        decodeOptions.inMutable = true;
+        decodeOptions.inSampleSize = sampleSize;
+    }
+
+    /**
+     * Get the subsampling factor of the decoded image.
+     *
+     * @return the subsampling factor.
+     */
+    int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Get the width of the image after subsampling.
+     *
+     * @return the width in pixels.
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the height of the image after subsampling.
+     *
+     * @return the height in pixels.
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Decode the sub-image at the position of the given tile into its
+     * pixels and set the size of the tile area inside the image.
+     *
+     * <p>The region is decoded in a reused bitmap, which clips the decoded
+     * content to its size, and the area outside the image is filled with
+     * zeros.</p>
+     *
+     * @param tile The tile to be read.
+     * @throws IOException if the region cannot be decoded in the reused
+     *                     bitmap.
+     */
+    void readTile(Tile tile) throws IOException {
+        int size = tile.size;
+        int[] pixels = tile.pixels;
+        int w = Math.min(size, width - tile.x);
+        int h = Math.min(size, height - tile.y);
+        tile.width = w;
+        tile.height = h;
+
+        if (regionBitmap == null || regionBitmap.getWidth() != size) {
+            regionBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            decodeOptions.inBitmap = regionBitmap;
+        }
+        region.set(tile.x * sampleSize, tile.y * sampleSize,
+                (tile.x + w) * sampleSize, (tile.y + h) * sampleSize);
+        // A null or different bitmap would leave the pixels of the
+        // previous tile in the reused one.
+        if (decoder.decodeRegion(region, decodeOptions) != regionBitmap) {
+            throw new IOException("Unable to decode region " + region);
+        }
+        regionBitmap.getPixels(pixels, 0, size, 0, 0, w, h);
+
+        // Zero-padding on the right and bottom borders.
+        if (w < size) {
+            for (int j = 0; j < h; j++) {
+                for (int i = j * size + w; i < (j + 1) * size; i++) {
+                    pixels[i] = 0;
+                }
+            }
+        }
+        for (int i = h * size; i < pixels.length; i++) {
+            pixels[i] = 0;
+        }
+    }
+
+    /**
+     * Release the decoder.
+     */
+    void close() {
+        decoder.recycle();
+    }
+}
@@ -0,0 +1,30 @@
+package it.unipr.advmobdev.whereiswally;
+
+import android.app.Application;
+
+/**
+ * Application class used to handle process-wide resources.
+ */
+public class WallyApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Load the model in background, so that the first search starts warm.
+        ModelSession.getInstance(this).preload();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Release the model when the system is running low on memory
+        // or the process is likely to be killed.
+        if (level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= TRIM_MEMORY_BACKGROUND)
+        {
+            ModelSession.getInstance(this).release();
+        }
+    }
+}
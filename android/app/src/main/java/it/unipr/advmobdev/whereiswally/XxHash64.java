@@ -0,0 +1,113 @@
+package it.unipr.advmobdev.whereiswally;
+
+/**
+ * Implementation of the 64-bit xxHash function.
+ *
+ * <p>The hash is computed on the little-endian bytes of an array of
+ * integers, so that pixels are hashed without being copied. xxHash is
+ * not a cryptographic hash, but it is much faster than the digests of
+ * the platform and has a good distribution.</p>
+ */
+final class XxHash64 {
+    /**
+     * Primes defined by the specification of the algorithm.
+     */
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+    private XxHash64() {}
+
+    /**
+     * Compute the hash of a range of an array of integers.
+     *
+     * @param data The array.
+     * @param offset The index of the first integer.
+     * @param length The number of integers.
+     * @param seed The seed of the hash.
+     * @return the hash.
+     */
+    static long hash(int[] data, int offset, int length, long seed) {
+        int end = offset + length;
+        int i = offset;
+        long h;
+        if (length >= 8) {
+            // Process stripes of 32 bytes with four accumulators.
+            long v1 = seed + PRIME_1 + PRIME_2;
+            long v2 = seed + PRIME_2;
+            long v3 = seed;
+            long v4 = seed - PRIME_1;
+            for (int limit = end - 8; i <= limit; i += 8) {
+                v1 = round(v1, lane(data, i));
+                v2 = round(v2, lane(data, i + 2));
+                v3 = round(v3, lane(data, i + 4));
+                v4 = round(v4, lane(data, i + 6));
+            }
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = seed + PRIME_5;
+        }
+        h += length * 4L;
+
+        // Process the remaining bytes.
+        for (; i + 2 <= end; i += 2) {
+            h ^= round(0, lane(data, i));
+            h = Long.rotateLeft(h, 27) * PRIME_1 + PRIME_4;
+        }
+        if (i < end) {
+            h ^= (data[i] & 0xffffffffL) * PRIME_1;
+            h = Long.rotateLeft(h, 23) * PRIME_2 + PRIME_3;
+        }
+
+        // Final mix.
+        h ^= h >>> 33;
+        h *= PRIME_2;
+        h ^= h >>> 29;
+        h *= PRIME_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * Read 8 little-endian bytes from two consecutive integers.
+     *
+     * @param data The array.
+     * @param index The index of the first integer.
+     * @return the bytes as a long.
+     */
+    private static long lane(int[] data, int index) {
+        return (data[index] & 0xffffffffL) | ((long) data[index + 1] << 32);
+    }
+
+    /**
+     * Mix an input lane into an accumulator.
+     *
+     * @param accumulator The accumulator.
+     * @param input The input lane.
+     * @return the updated accumulator.
+     */
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME_1;
+    }
+
+    /**
+     * Merge an accumulator into the hash.
+     *
+     * @param accumulator The hash.
+     * @param value The accumulator to be merged.
+     * @return the updated hash.
+     */
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME_1 + PRIME_4;
+    }
+}